@@ -0,0 +1,212 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+
+/**
+ * The operations measured by the JMH benchmarks in benchmarks/: the kernel of
+ * each task type, the encoding of tasks and results in either protocol, the
+ * task queues, and the result writers.
+ *
+ * JMH needs its benchmark classes in a named package, which cannot refer to
+ * the classes here in the default package, so the benchmarks get each
+ * operation from {@link #operation} once, while setting up a trial, and time
+ * calls to it. To run them:
+ *
+ * <pre>
+ * mvn install
+ * mvn -f benchmarks/pom.xml package
+ * java -jar benchmarks/target/benchmarks.jar -rf json -rff benchmark.json
+ * </pre>
+ */
+public class Benchmark {
+
+    /* Domain of every benchmark, as in MandelbrotManager */
+    private static final double REAL_MIN_Z = -2.0;
+    private static final double REAL_MAX_Z = 1.0;
+    private static final double IMAGINARY_MIN_Z = -1.0;
+    private static final double IMAGINARY_MAX_Z = 1.0;
+
+    /* Size of the tiles of the tile kernel */
+    private static final int TILE_SIZE = 64;
+
+    private Benchmark() {
+    }
+
+    /**
+     * Prepare an operation to be measured.
+     *
+     * @param name            the operation: "kernel.rows", "kernel.shortcuts",
+     *                        "kernel.tile", "codec.raw", "codec.packed",
+     *                        "codec.deflated", "codec.object", "queue.list",
+     *                        "queue.guided", "queue.cost", or "writer." followed
+     *                        by a format of ResultWriter
+     * @param realPoints      the size of the real axis
+     * @param imaginaryPoints the size of the imaginary axis
+     * @param maxIterations   the maximum number of iterations at each point
+     * @param rowCount        the number of rows of a row task
+     * @return the operation, returning anything depending on the work done.
+     * @throws IllegalArgumentException if there is no operation with the name
+     */
+    public static Callable<Object> operation(String name, int realPoints, int imaginaryPoints, int maxIterations,
+            int rowCount) {
+        String kind = name.substring(0, Math.max(0, name.indexOf('.')));
+        String variant = name.substring(name.indexOf('.') + 1);
+
+        switch (kind) {
+        case "kernel":
+            if (variant.equals("tile")) {
+                MandelbrotTileTask tile = new MandelbrotTileTask(middle(realPoints, TILE_SIZE), TILE_SIZE,
+                        middle(imaginaryPoints + 1, TILE_SIZE), TILE_SIZE, maxIterations, realPoints,
+                        imaginaryPoints, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, false);
+                return () -> execute(tile);
+            }
+            MandelbrotTask task = rowTask(realPoints, imaginaryPoints, maxIterations, rowCount,
+                    variant.equals("shortcuts"));
+            return () -> execute(task);
+        case "codec":
+            MandelbrotTask encoded = rowTask(realPoints, imaginaryPoints, maxIterations, rowCount, false);
+            Tasks.TaskResult result = encoded.execute();
+            if (variant.equals("object")) {
+                return () -> objectRoundTrip(encoded, result);
+            }
+            MandelbrotTask.MandelbrotCodec codec = new MandelbrotTask.MandelbrotCodec(maxIterations, realPoints,
+                    imaginaryPoints, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, false);
+            codec.setResultEncoding(MandelbrotTask.MandelbrotCodec.resultEncoding(variant));
+            return () -> binaryRoundTrip(codec, encoded, result);
+        case "queue":
+            switch (variant) {
+            case "guided":
+                return () -> drain(guidedQueue(realPoints, imaginaryPoints));
+            case "cost":
+                return () -> drain(costQueue(realPoints, imaginaryPoints));
+            default:
+                return () -> drain(listQueue(realPoints, imaginaryPoints));
+            }
+        case "writer":
+            ResultGrid grid = grid(realPoints, imaginaryPoints, maxIterations);
+            ResultWriter writer = ResultWriter.forFormat(variant, maxIterations, realPoints, imaginaryPoints,
+                    REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z);
+            return () -> {
+                writer.writeTo(grid, OutputStream.nullOutputStream());
+                return writer;
+            };
+        default:
+            throw new IllegalArgumentException("no benchmark named " + name);
+        }
+    }
+
+    /**
+     * Get the first index of a block of the given size in the middle of an axis,
+     * where the rows cross the set.
+     */
+    private static int middle(int points, int size) {
+        return Math.max(0, Math.min(points - size, points / 2 - size / 2));
+    }
+
+    private static MandelbrotTask rowTask(int realPoints, int imaginaryPoints, int maxIterations, int rowCount,
+            boolean shortcuts) {
+        return new MandelbrotTask(middle(realPoints, rowCount), rowCount, maxIterations, realPoints, imaginaryPoints,
+                REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, shortcuts);
+    }
+
+    private static Object execute(Tasks task) {
+        Tasks.TaskResult result = task.execute();
+        result.release();
+        return result;
+    }
+
+    /**
+     * Send a task and its result through the binary codec, as the manager and a
+     * worker do, framing excluded.
+     */
+    private static Object binaryRoundTrip(Tasks.Codec codec, Tasks task, Tasks.TaskResult result) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.writeTask(out, task);
+        codec.writeResult(out, result);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Tasks received = codec.readTask(in);
+        Tasks.TaskResult returned = codec.readResult(in);
+        returned.release();
+        return received;
+    }
+
+    /**
+     * Send a task and its result as serialized objects, as the object protocol
+     * does.
+     */
+    private static Object objectRoundTrip(Tasks task, Tasks.TaskResult result) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(task);
+        out.reset();
+        out.writeObject(result);
+        out.reset();
+        out.flush();
+
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        Object received = in.readObject();
+        in.readObject();
+        return received;
+    }
+
+    /* Queues need a manager to belong to */
+    private static final Manager MANAGER = new Manager(0, 4) {
+        @Override
+        protected WorkerTalker newTalker(SynchTaskQueue<? extends Tasks> taskQueue, int workerID, Socket s) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static Manager.SynchTaskQueue<MandelbrotTask> listQueue(int realPoints, int imaginaryPoints) {
+        return MANAGER.new SynchTaskQueue<>(MandelbrotTask.makeTasks(200, realPoints, imaginaryPoints, REAL_MIN_Z,
+                REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z));
+    }
+
+    private static Manager.SynchTaskQueue<MandelbrotTask> guidedQueue(int realPoints, int imaginaryPoints) {
+        return MANAGER.new GuidedTaskQueue<>(realPoints, 2, MandelbrotTask.taskSpace(200, realPoints,
+                imaginaryPoints, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, false));
+    }
+
+    private static Manager.SynchTaskQueue<MandelbrotTask> costQueue(int realPoints, int imaginaryPoints) {
+        double[] costs = new double[realPoints];
+        for (int i = 0; i < realPoints; i++) {
+            costs[i] = 1 + i % 97;
+        }
+        return MANAGER.new CostTaskQueue<>(costs, 2, 1024, MandelbrotTask.taskSpace(200, realPoints,
+                imaginaryPoints, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, false));
+    }
+
+    /**
+     * Take every task from a queue.
+     */
+    private static Object drain(Manager.SynchTaskQueue<?> queue) {
+        Tasks last = null;
+        Tasks t;
+        while ((t = queue.get()) != null) {
+            last = t;
+        }
+        return last;
+    }
+
+    /**
+     * Compute a grid to write.
+     */
+    private static ResultGrid grid(int realPoints, int imaginaryPoints, int maxIterations) {
+        ResultGrid grid = new ResultGrid.HeapGrid(realPoints + 1, imaginaryPoints + 1);
+        for (MandelbrotTask task : MandelbrotTask.makeTasks(maxIterations, realPoints, imaginaryPoints, REAL_MIN_Z,
+                REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z)) {
+            MandelbrotTask.MandelbrotTaskResult result = (MandelbrotTask.MandelbrotTaskResult) task.execute();
+            grid.setRow(result.rowIndex, result.rowResult, 0);
+            result.release();
+        }
+        return grid;
+    }
+}
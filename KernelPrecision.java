@@ -0,0 +1,308 @@
+/**
+ * The arithmetic the escape-time kernel iterates in, chosen per job.
+ *
+ * DOUBLE is the kernel of {@link MandelbrotTask#escapeTime} and the reference
+ * for the others. FLOAT iterates in single precision from the double coordinates
+ * of each point rounded to float. Its counts only match those of DOUBLE where the
+ * rounding never tips an orbit across the escape radius, which near the boundary
+ * of the set is not guaranteed at any spacing of the points. DOUBLE_DOUBLE carries
+ * every value as the unevaluated sum of two doubles, about 106 bits, for views
+ * whose points are too close together for DOUBLE, down to a spacing of about
+ * 1e-28 relative to their magnitude, at several times the cost.
+ *
+ * Counts are those of {@link MandelbrotTask#escapeTime}: the number of iterations
+ * before |z^2|^2 exceeds 4.
+ */
+final class KernelPrecision {
+
+    static final byte DOUBLE = 0;
+    static final byte FLOAT = 1;
+    static final byte DOUBLE_DOUBLE = 2;
+
+    /* Smallest spacing of points, relative to their magnitude, resolved with a wide margin */
+    private static final double FLOAT_SPACING = 1e-4;
+    private static final double DOUBLE_SPACING = 1e-13;
+
+    private KernelPrecision() {
+    }
+
+    /**
+     * Get the precision with the given name, "double", "float" or
+     * "doubledouble".
+     */
+    static byte parse(String name) {
+        switch (name) {
+        case "float":
+            return FLOAT;
+        case "doubledouble":
+            return DOUBLE_DOUBLE;
+        default:
+            return DOUBLE;
+        }
+    }
+
+    /**
+     * Get the name of a precision, as given to {@link #parse}.
+     */
+    static String name(byte precision) {
+        switch (precision) {
+        case FLOAT:
+            return "float";
+        case DOUBLE_DOUBLE:
+            return "doubledouble";
+        default:
+            return "double";
+        }
+    }
+
+    /**
+     * Get the cheapest precision resolving points the given distance apart.
+     *
+     * @param spacing   the distance between neighbouring points
+     * @param magnitude the largest magnitude of a coordinate of the view
+     */
+    static byte forSpacing(double spacing, double magnitude) {
+        double relative = spacing / Math.max(1, magnitude);
+        if (relative >= FLOAT_SPACING) {
+            return FLOAT;
+        }
+        return relative >= DOUBLE_SPACING ? DOUBLE : DOUBLE_DOUBLE;
+    }
+
+    /**
+     * Get the cheapest precision resolving the points of a grid over the given
+     * view.
+     */
+    static byte forView(int numRealPoints, int numImaginaryPoints, double realMinZ, double realMaxZ,
+            double imaginaryMinZ, double imaginaryMaxZ) {
+        double spacing = Math.min((realMaxZ - realMinZ) / numRealPoints,
+                (imaginaryMaxZ - imaginaryMinZ) / numImaginaryPoints);
+        double magnitude = Math.max(Math.max(Math.abs(realMinZ), Math.abs(realMaxZ)),
+                Math.max(Math.abs(imaginaryMinZ), Math.abs(imaginaryMaxZ)));
+        return forSpacing(spacing, magnitude);
+    }
+
+    /**
+     * Count the iterations of the point in row i and column j of a grid, in the
+     * given precision.
+     */
+    static int escapeTime(byte precision, int i, int j, int maxIterations, int numRealPoints,
+            int numImaginaryPoints, double realMinZ, double realMaxZ, double imaginaryMinZ, double imaginaryMaxZ) {
+        if (precision == DOUBLE_DOUBLE) {
+            double[] real = point(i, numRealPoints, realMinZ, realMaxZ);
+            double[] imaginary = point(j, numImaginaryPoints, imaginaryMinZ, imaginaryMaxZ);
+            return escapeTimeDoubleDouble(real[0], real[1], imaginary[0], imaginary[1], maxIterations);
+        }
+
+        double z0Real = (((double) i) / ((double) numRealPoints)) * (realMaxZ - realMinZ) + realMinZ;
+        double z0Imaginary = (((double) j) / ((double) numImaginaryPoints)) * (imaginaryMaxZ - imaginaryMinZ)
+                + imaginaryMinZ;
+        if (precision == FLOAT) {
+            return escapeTimeFloat((float) z0Real, (float) z0Imaginary, maxIterations);
+        }
+        return MandelbrotTask.escapeTime(z0Real, z0Imaginary, maxIterations);
+    }
+
+    /**
+     * Compute the counts of row i of a grid in the given precision, LANES points
+     * at a time in FLOAT, and finding the real part once in DOUBLE_DOUBLE.
+     *
+     * @param counts the array to write the counts to
+     * @param offset the index in counts of the first point of the row
+     */
+    static void computeRow(byte precision, int i, int maxIterations, int numRealPoints, int numImaginaryPoints,
+            double realMinZ, double realMaxZ, double imaginaryMinZ, double imaginaryMaxZ, int[] counts,
+            int offset) {
+        int rowLength = numImaginaryPoints + 1;
+        int j = 0;
+
+        if (precision == FLOAT) {
+            float z0Real = (float) ((((double) i) / ((double) numRealPoints)) * (realMaxZ - realMinZ) + realMinZ);
+            float[] z0Imaginary = new float[MandelbrotTask.LANES];
+            for (; j + MandelbrotTask.LANES <= rowLength; j += MandelbrotTask.LANES) {
+                for (int lane = 0; lane < MandelbrotTask.LANES; lane++) {
+                    z0Imaginary[lane] = (float) ((((double) (j + lane)) / ((double) numImaginaryPoints))
+                            * (imaginaryMaxZ - imaginaryMinZ) + imaginaryMinZ);
+                }
+                escapeTimesFloat(z0Real, z0Imaginary[0], z0Imaginary[1], z0Imaginary[2], z0Imaginary[3],
+                        maxIterations, counts, offset + j);
+            }
+        }
+        if (precision == DOUBLE_DOUBLE) {
+            double[] real = point(i, numRealPoints, realMinZ, realMaxZ);
+            for (; j < rowLength; j++) {
+                double[] imaginary = point(j, numImaginaryPoints, imaginaryMinZ, imaginaryMaxZ);
+                counts[offset + j] = escapeTimeDoubleDouble(real[0], real[1], imaginary[0], imaginary[1],
+                        maxIterations);
+            }
+        }
+        for (; j < rowLength; j++) {
+            counts[offset + j] = escapeTime(precision, i, j, maxIterations, numRealPoints, numImaginaryPoints,
+                    realMinZ, realMaxZ, imaginaryMinZ, imaginaryMaxZ);
+        }
+    }
+
+    /**
+     * Count the iterations of a point in single precision.
+     */
+    static int escapeTimeFloat(float z0Real, float z0Imaginary, int maxIterations) {
+        float zReal = z0Real;
+        float zImaginary = z0Imaginary;
+        int k = 0;
+
+        while (k < maxIterations) {
+            float zSquaredReal = zReal * zReal - zImaginary * zImaginary;
+            float zSquaredImaginary = 2.0f * zReal * zImaginary;
+
+            if (zSquaredReal * zSquaredReal + zSquaredImaginary * zSquaredImaginary > 4) {
+                break;
+            }
+
+            zReal = zSquaredReal + z0Real;
+            zImaginary = zSquaredImaginary + z0Imaginary;
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Count the iterations of four points sharing a real part at once in single
+     * precision, as {@link MandelbrotTask#escapeTimes} does in double.
+     */
+    static void escapeTimesFloat(float z0Real, float z0Imaginary0, float z0Imaginary1, float z0Imaginary2,
+            float z0Imaginary3, int maxIterations, int[] counts, int offset) {
+        float zReal0 = z0Real, zReal1 = z0Real, zReal2 = z0Real, zReal3 = z0Real;
+        float zImaginary0 = z0Imaginary0, zImaginary1 = z0Imaginary1;
+        float zImaginary2 = z0Imaginary2, zImaginary3 = z0Imaginary3;
+        int k0 = maxIterations, k1 = maxIterations, k2 = maxIterations, k3 = maxIterations;
+        int active = MandelbrotTask.LANES;
+
+        for (int k = 0; k < maxIterations; k++) {
+            float zSquaredReal0 = zReal0 * zReal0 - zImaginary0 * zImaginary0;
+            float zSquaredImaginary0 = 2.0f * zReal0 * zImaginary0;
+            float zSquaredReal1 = zReal1 * zReal1 - zImaginary1 * zImaginary1;
+            float zSquaredImaginary1 = 2.0f * zReal1 * zImaginary1;
+            float zSquaredReal2 = zReal2 * zReal2 - zImaginary2 * zImaginary2;
+            float zSquaredImaginary2 = 2.0f * zReal2 * zImaginary2;
+            float zSquaredReal3 = zReal3 * zReal3 - zImaginary3 * zImaginary3;
+            float zSquaredImaginary3 = 2.0f * zReal3 * zImaginary3;
+
+            /* record the first iteration at which each lane escapes */
+            if (k0 == maxIterations && zSquaredReal0 * zSquaredReal0 + zSquaredImaginary0 * zSquaredImaginary0 > 4) {
+                k0 = k;
+                active--;
+            }
+            if (k1 == maxIterations && zSquaredReal1 * zSquaredReal1 + zSquaredImaginary1 * zSquaredImaginary1 > 4) {
+                k1 = k;
+                active--;
+            }
+            if (k2 == maxIterations && zSquaredReal2 * zSquaredReal2 + zSquaredImaginary2 * zSquaredImaginary2 > 4) {
+                k2 = k;
+                active--;
+            }
+            if (k3 == maxIterations && zSquaredReal3 * zSquaredReal3 + zSquaredImaginary3 * zSquaredImaginary3 > 4) {
+                k3 = k;
+                active--;
+            }
+            if (active == 0) {
+                break;
+            }
+
+            zReal0 = zSquaredReal0 + z0Real;
+            zImaginary0 = zSquaredImaginary0 + z0Imaginary0;
+            zReal1 = zSquaredReal1 + z0Real;
+            zImaginary1 = zSquaredImaginary1 + z0Imaginary1;
+            zReal2 = zSquaredReal2 + z0Real;
+            zImaginary2 = zSquaredImaginary2 + z0Imaginary2;
+            zReal3 = zSquaredReal3 + z0Real;
+            zImaginary3 = zSquaredImaginary3 + z0Imaginary3;
+        }
+
+        counts[offset] = k0;
+        counts[offset + 1] = k1;
+        counts[offset + 2] = k2;
+        counts[offset + 3] = k3;
+    }
+
+    /**
+     * Count the iterations of a point in double-double arithmetic. Each value is
+     * held as a high and a low double; products use Math.fma to recover their
+     * rounding error, and sums the two-sum of Knuth. Only the high parts are
+     * needed to test for escape.
+     */
+    static int escapeTimeDoubleDouble(double z0RealHigh, double z0RealLow, double z0ImaginaryHigh,
+            double z0ImaginaryLow, int maxIterations) {
+        double zRealHigh = z0RealHigh, zRealLow = z0RealLow;
+        double zImaginaryHigh = z0ImaginaryHigh, zImaginaryLow = z0ImaginaryLow;
+        int k = 0;
+
+        while (k < maxIterations) {
+            /* zReal^2, zImaginary^2 and 2 zReal zImaginary, each as high + low */
+            double realSquaredHigh = zRealHigh * zRealHigh;
+            double realSquaredLow = Math.fma(zRealHigh, zRealHigh, -realSquaredHigh) + 2 * zRealHigh * zRealLow;
+            double imaginarySquaredHigh = zImaginaryHigh * zImaginaryHigh;
+            double imaginarySquaredLow = Math.fma(zImaginaryHigh, zImaginaryHigh, -imaginarySquaredHigh)
+                    + 2 * zImaginaryHigh * zImaginaryLow;
+            double crossHigh = zRealHigh * zImaginaryHigh;
+            double crossLow = Math.fma(zRealHigh, zImaginaryHigh, -crossHigh) + zRealHigh * zImaginaryLow
+                    + zRealLow * zImaginaryHigh;
+
+            /* Re(z^2) = zReal^2 - zImaginary^2 */
+            double sum = realSquaredHigh - imaginarySquaredHigh;
+            double virtual = sum - realSquaredHigh;
+            double error = (realSquaredHigh - (sum - virtual)) + (-imaginarySquaredHigh - virtual)
+                    + (realSquaredLow - imaginarySquaredLow);
+            double zSquaredRealHigh = sum + error;
+            double zSquaredRealLow = error - (zSquaredRealHigh - sum);
+
+            /* Im(z^2) = 2 zReal zImaginary, doubling exactly */
+            double zSquaredImaginaryHigh = 2 * crossHigh + 2 * crossLow;
+            double zSquaredImaginaryLow = 2 * crossLow - (zSquaredImaginaryHigh - 2 * crossHigh);
+
+            if (zSquaredRealHigh * zSquaredRealHigh + zSquaredImaginaryHigh * zSquaredImaginaryHigh > 4) {
+                break; // Equivalent to |z^2|>2
+            }
+
+            /* z = z^2 + z0 */
+            sum = zSquaredRealHigh + z0RealHigh;
+            virtual = sum - zSquaredRealHigh;
+            error = (zSquaredRealHigh - (sum - virtual)) + (z0RealHigh - virtual) + zSquaredRealLow + z0RealLow;
+            zRealHigh = sum + error;
+            zRealLow = error - (zRealHigh - sum);
+
+            sum = zSquaredImaginaryHigh + z0ImaginaryHigh;
+            virtual = sum - zSquaredImaginaryHigh;
+            error = (zSquaredImaginaryHigh - (sum - virtual)) + (z0ImaginaryHigh - virtual) + zSquaredImaginaryLow
+                    + z0ImaginaryLow;
+            zImaginaryHigh = sum + error;
+            zImaginaryLow = error - (zImaginaryHigh - sum);
+
+            k++;
+        }
+        return k;
+    }
+
+    /**
+     * Get the coordinate of the given point of an axis in double-double, as the
+     * high and low parts of min + (index / points) * (max - min).
+     */
+    static double[] point(int index, int points, double min, double max) {
+        /* index / points */
+        double ratioHigh = (double) index / points;
+        double ratioLow = Math.fma(-ratioHigh, points, index) / points;
+
+        /* max - min */
+        double spanHigh = max - min;
+        double virtual = spanHigh - max;
+        double spanLow = (max - (spanHigh - virtual)) + (-min - virtual);
+
+        /* product, then plus min */
+        double productHigh = ratioHigh * spanHigh;
+        double productLow = Math.fma(ratioHigh, spanHigh, -productHigh) + ratioHigh * spanLow + ratioLow * spanHigh;
+        double sum = productHigh + min;
+        virtual = sum - productHigh;
+        double error = (productHigh - (sum - virtual)) + (min - virtual) + productLow;
+        double high = sum + error;
+        return new double[] { high, error - (high - sum) };
+    }
+}
@@ -1,12 +1,14 @@
 import java.io.IOException;
 import java.io.Serializable;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Generic Manager for worker/manager using sockets.
@@ -17,6 +19,34 @@ import java.util.List;
  * Task.TaskResult. (3) Repeat Steps (1) and (2) while there are more tasks to
  * assign. (4) When all tasks have been assigned, server sends a ShutdownTask
  * object to the client.
+ *
+ * Steps (1) and (2) are pipelined: each connection keeps up to {@code window}
+ * tasks in flight, or as many as the worker asks for if that is more, sending a
+ * new task whenever a result comes back, and results are matched to their tasks
+ * by task id. Messages travel over a TaskChannel,
+ * using the binary protocol when {@link #newCodec()} supplies a codec.
+ *
+ * Each connection is served by its own thread unless {@code selectorThreads} is
+ * set, in which case a SelectorEngine multiplexes all connections over that many
+ * threads. The selector engine requires the binary protocol.
+ *
+ * Tasks are handed out through a TaskTracker, so the tasks of a failed
+ * connection are sent again, idle workers are given copies of overdue tasks
+ * when {@code speculate} is set, and the job only ends once every task has a
+ * result.
+ *
+ * The manager may also run tasks on {@code localWorkers} threads of its own,
+ * which take tasks from the tracker like any connection and hand their results to
+ * a talker by reference, with nothing serialized. They run alongside remote
+ * workers, or alone when {@code acceptWorkers} is cleared.
+ *
+ * When {@code reduction} is set, every task carries it, so workers send back
+ * partials each covering several tasks. A partial is only collected if none of
+ * its tasks has a result yet, and otherwise the rest of its tasks are handed out
+ * again.
+ *
+ * Throughput, latency, traffic and idle time of each connection, and the depth
+ * of the queue, are recorded in {@code metrics}.
  */
 public abstract class Manager {
 
@@ -26,19 +56,107 @@ public abstract class Manager {
     protected volatile boolean emptyQueueShutDown = false;
     protected List<Thread> workerThreads = new LinkedList<Thread>();
 
+    /* Number of tasks each connection may have in flight at once */
+    protected int window;
+
+    /* Number of event loop threads serving all connections, 0 for a thread per worker */
+    protected int selectorThreads = 0;
+
+    /* Number of workers connected so far, read without locking by the queue */
+    protected volatile int numWorkers;
+
+    /* Number of threads running tasks in this process alongside any workers */
+    protected int localWorkers = 0;
+
+    /* Whether to accept connections from workers, cleared to run every task locally */
+    protected boolean acceptWorkers = true;
+
+    /* Whether to copy overdue tasks to idle workers once the queue is empty */
+    protected boolean speculate = true;
+
+    /* Reduction given to every task, or null for results to be sent whole */
+    protected Tasks.Reduction reduction;
+
+    /* Tasks handed out and waiting for a result, created when processing starts */
+    protected TaskTracker tracker;
+
+    /* Talkers of the connections served by their own thread */
+    private final List<WorkerTalker> talkers = new ArrayList<>();
+
+    /* Counters and histograms of every connection */
+    protected final Metrics metrics;
+
+    /* Source of task ids, unique across all connections */
+    private final AtomicInteger nextTaskID = new AtomicInteger();
+
+    /* Sum of the windows of the open connections */
+    private final AtomicInteger totalCredits = new AtomicInteger();
+
     /**
      * Construct a manager instance
      * 
      * @param _port the port to host manager on
      */
     public Manager(int port) {
+        this(port, 1);
+    }
+
+    /**
+     * Construct a manager instance which pipelines tasks to each worker.
+     * 
+     * @param port   the port to host manager on
+     * @param window the number of tasks in flight per worker connection
+     */
+    public Manager(int port, int window) {
+        this(port, window, "manager");
+    }
+
+    /**
+     * Construct a manager instance whose metrics are kept under the given name.
+     * 
+     * @param port   the port to host manager on
+     * @param window the number of tasks in flight per worker connection
+     * @param name   the name of the process in its metrics
+     */
+    protected Manager(int port, int window, String name) {
+        if (window < 1) {
+            throw new IllegalArgumentException("window must be at least 1: " + window);
+        }
         this.port = port;
+        this.window = window;
+        this.metrics = new Metrics(name);
     }
 
     /**
      * Workers request tasks from the task queue
      */
     public void process() {
+        tracker = new TaskTracker(this, speculate);
+        metrics.gauge("queueDepth", () -> taskQueue.remaining());
+        metrics.gauge("outstandingTasks", () -> tracker.outstanding());
+        metrics.gauge("workers", () -> numWorkers);
+        metrics.gauge("credits", () -> totalCredits.get());
+        metrics.start();
+        numWorkers = localWorkers;
+        List<Thread> localThreads = startLocalWorkers();
+
+        if (!acceptWorkers) {
+            System.out.printf("running tasks on %d local threads\n", localWorkers);
+            taskQueueEmpty();
+            joinAll(localThreads);
+            metrics.stop();
+            return;
+        }
+
+        if (selectorThreads > 0) {
+            if (newCodec() != null) {
+                processWithSelectors();
+                joinAll(localThreads);
+                metrics.stop();
+                return;
+            }
+            System.err.println("selector engine needs the binary protocol, using a thread per worker");
+        }
 
         /* thread can accept connections from other workers */
         Thread serverSocketThread = new Thread(new Runnable() {
@@ -77,13 +195,46 @@ public abstract class Manager {
         }
         waitForThreadToComplete(serverSocketThread);
 
+        /* stop waiting on workers still running copies of tasks that are done */
+        synchronized (workerThreads) {
+            for (WorkerTalker talker : talkers) {
+                talker.abandon();
+            }
+        }
+
         /* wait for worker threads to finish */
         System.out.println("waiting for worker threads to finish");
-        for (Thread t : workerThreads) {
-            waitForThreadToComplete(t);
+        joinAll(workerThreads);
+        joinAll(localThreads);
+
+        System.out.printf("number of workers = %d\n", numWorkers);
+        metrics.stop();
+    }
+
+    /**
+     * Serve workers from a fixed set of event loop threads.
+     */
+    protected void processWithSelectors() {
+        SelectorEngine engine = null;
+        try {
+            engine = new SelectorEngine(this, selectorThreads);
+            engine.start();
+        } catch (IOException e) {
+            System.err.println("error with server channel:\n\t" + e);
+            System.exit(1);
         }
 
-        System.out.printf("number of workers = %d\n", workerThreads.size());
+        /* wait for task queue to become empty */
+        System.out.println("waiting for task queue to become empty");
+        taskQueueEmpty();
+
+        /* stop accepting, then let the loops finish their connections */
+        engine.shutdown();
+        System.out.println("Queue is empty, server channel closed");
+        System.out.println("waiting for connections to finish");
+        engine.join();
+
+        System.out.printf("number of workers = %d\n", numWorkers);
     }
 
     /**
@@ -97,19 +248,90 @@ public abstract class Manager {
         synchronized (workerThreads) {
             int workerID = workerThreads.size();
             System.out.printf("connection from %s, worker %d\n", clientAddress(socket), workerID);
-            Thread workerTalker = newWorkerTalker(taskQueue, workerID, socket);
+            WorkerTalker talker = newTalker(taskQueue, workerID, socket);
+            talkers.add(talker);
+            Thread workerTalker = newWorkerTalker(talker);
             workerThreads.add(workerTalker);
+            numWorkers = localWorkers + workerThreads.size();
             workerTalker.start();
         }
     }
 
     /**
-     * Create a new thread containing a sub type of WorkerTalker.
+     * Start the threads running tasks in this process.
+     */
+    private List<Thread> startLocalWorkers() {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < localWorkers; i++) {
+            Thread t = new Thread(new LocalWorker(i), "local-worker-" + i);
+            threads.add(t);
+            t.start();
+        }
+        return threads;
+    }
+
+    /**
+     * Wait for every thread of a list to complete.
      */
-    protected abstract Thread newWorkerTalker(SynchTaskQueue<? extends Tasks> taskQueue, int workerID, Socket s);
+    private void joinAll(List<Thread> threads) {
+        for (Thread t : threads) {
+            waitForThreadToComplete(t);
+        }
+    }
 
     /**
-     * Wait until the queue of tasks becomes empty.
+     * Create a new thread to run a WorkerTalker.
+     */
+    protected Thread newWorkerTalker(WorkerTalker talker) {
+        return new Thread(talker);
+    }
+
+    /**
+     * Create a sub type of WorkerTalker to collect the results of a worker.
+     */
+    protected abstract WorkerTalker newTalker(SynchTaskQueue<? extends Tasks> taskQueue, int workerID, Socket s);
+
+    /**
+     * Open the window of a new connection.
+     * 
+     * @param credit the number of tasks the worker asked to have in flight
+     * @return the window of the connection
+     */
+    int openWindow(int credit) {
+        int connectionWindow = Math.max(window, credit);
+        totalCredits.addAndGet(connectionWindow);
+        return connectionWindow;
+    }
+
+    /**
+     * Close the window of a finished connection.
+     */
+    void closeWindow(int connectionWindow) {
+        totalCredits.addAndGet(-connectionWindow);
+    }
+
+    /**
+     * Give a task taken from the queue a new id, unique across all connections,
+     * and the reduction of the job.
+     */
+    void assignTaskID(Tasks t) {
+        t.setTaskID(nextTaskID.getAndIncrement());
+        t.setReduction(reduction);
+    }
+
+    /**
+     * Create the codec for a new worker connection.
+     * 
+     * @return the codec for the binary protocol, or null to send serialized
+     *         objects.
+     */
+    protected Tasks.Codec newCodec() {
+        return null;
+    }
+
+    /**
+     * Wait until the queue of tasks becomes empty and every task handed out has
+     * a result.
      */
     protected void taskQueueEmpty() {
         synchronized (taskQueue) {
@@ -121,6 +343,76 @@ public abstract class Manager {
                 }
             }
         }
+        tracker.awaitDone();
+    }
+
+    /**
+     * Record the latency and compute time of a task whose result has arrived.
+     * 
+     * @param latency the time from sending the task to receiving its result
+     */
+    static void record(Metrics.Stats stats, long latency, Tasks.TaskResult result) {
+        record(stats, latency, result.getComputeNanos());
+    }
+
+    /**
+     * Record the latency and compute time of a task whose result has arrived.
+     * 
+     * @param latency      the time from sending the task to receiving its result
+     * @param computeNanos the time the worker spent executing the task
+     */
+    static void record(Metrics.Stats stats, long latency, long computeNanos) {
+        stats.tasks.increment();
+        stats.latency.record(latency);
+        stats.compute.record(computeNanos);
+        stats.transfer.record(latency - computeNanos);
+    }
+
+    /**
+     * Take the tasks a result read from a connection covers out of those in
+     * flight, and hand the result to the talker if it is the first to arrive for
+     * them. A partial whose tasks are not all outstanding any more is dropped, and
+     * those which still are are handed out again.
+     * 
+     * @param inFlight the tasks in flight on the connection, by id
+     * @param sentAt   the time each task in flight was sent, by id
+     */
+    void collect(WorkerTalker talker, Tasks.TaskResult result, Map<Integer, Tasks> inFlight,
+            Map<Integer, Long> sentAt, Metrics.Stats stats, int workerID) {
+        if (!(result instanceof Tasks.Partial)) {
+            if (inFlight.remove(result.getTaskID()) == null) {
+                System.err.println("client " + workerID + " returned unknown task " + result.getTaskID());
+                return;
+            }
+            record(stats, System.nanoTime() - sentAt.remove(result.getTaskID()), result);
+
+            /* the first copy of a task to finish wins */
+            if (tracker.complete(result.getTaskID())) {
+                talker.addResults(result);
+            }
+            return;
+        }
+
+        Tasks.Partial partial = (Tasks.Partial) result;
+        int[] taskIDs = partial.getTaskIDs();
+        List<Tasks> covered = new ArrayList<>(taskIDs.length);
+        long now = System.nanoTime();
+        for (int taskID : taskIDs) {
+            Tasks t = inFlight.remove(taskID);
+            if (t == null) {
+                System.err.println("client " + workerID + " returned unknown task " + taskID);
+                continue;
+            }
+            covered.add(t);
+            record(stats, now - sentAt.remove(taskID), partial.getComputeNanos() / taskIDs.length);
+        }
+
+        /* the tasks of a partial are completed together or not at all */
+        if (covered.size() == taskIDs.length && tracker.completeAll(taskIDs)) {
+            talker.addResults(partial);
+        } else {
+            tracker.lost(covered);
+        }
     }
 
     /**
@@ -152,6 +444,9 @@ public abstract class Manager {
         private SynchTaskQueue<? extends Tasks> taskQueue;
         protected List<Tasks.TaskResult> results;
 
+        /* Set while waiting for a result from the worker */
+        private volatile boolean awaitingResult = false;
+
         /**
          * Constructor to make a WorkerTalker from a list of tasks.
          */
@@ -163,7 +458,8 @@ public abstract class Manager {
         }
 
         /**
-         * Collects the results from the worker.
+         * Collects the results from the worker. The result's buffers are released
+         * for reuse afterwards, so anything kept must be copied.
          * 
          * @param taskResult an object storing the result calculated by the manager.
          */
@@ -174,33 +470,134 @@ public abstract class Manager {
          */
         public void run() {
 
-            ObjectInputStream input = null;
-            ObjectOutputStream output = null;
+            int connectionWindow = 0;
+            Map<Integer, Tasks> inFlight = new HashMap<>();
+            Map<Integer, Long> sentAt = new HashMap<>();
+            Metrics.Stats stats = metrics.stats("worker-" + myID);
 
             try {
-                output = new ObjectOutputStream(socket.getOutputStream());
-                input = new ObjectInputStream(socket.getInputStream());
+                TaskChannel channel = TaskChannel.openManagerSide(socket, myID, newCodec());
+                channel.countBytes(stats.bytesSent, stats.bytesReceived);
+                connectionWindow = openWindow(channel.readCredit());
+                boolean moreTasks = true;
+
+                /* retrieve tasks from queue until no more, keeping the window full */
+                while (true) {
+                    while (moreTasks && inFlight.size() < connectionWindow) {
+                        Tasks t = tracker.take();
+                        if (t == null) {
+                            /* a queue fed while the job runs may only have nothing yet */
+                            moreTasks = !taskQueue.isEmpty();
+                            break;
+                        }
+                        inFlight.put(t.getTaskID(), t);
+                        sentAt.put(t.getTaskID(), System.nanoTime());
+                        channel.writeTask(t);
+                    }
+                    channel.flush();
 
-                output.writeObject(Integer.valueOf(myID));
-                Tasks t;
+                    /* once idle, run lost, overdue or newly queued tasks until every task is done */
+                    if (inFlight.isEmpty()) {
+                        long idleSince = System.nanoTime();
+                        Tasks t = tracker.awaitSpare();
+                        stats.idleNanos.add(System.nanoTime() - idleSince);
+                        if (t == null) {
+                            break;
+                        }
+                        inFlight.put(t.getTaskID(), t);
+                        sentAt.put(t.getTaskID(), System.nanoTime());
+                        channel.writeTask(t);
+                        continue;
+                    }
 
-                /* retrieve tasks from queue until no more */
-                while ((t = taskQueue.get()) != null) {
-                    /* send task to worker process, receive result */
-                    output.writeObject(t);
-                    addResults((Tasks.TaskResult) input.readObject());
+                    /* one result returns a credit to the window for each task it covers */
+                    awaitingResult = true;
+                    Tasks.TaskResult taskResult = channel.readResult();
+                    awaitingResult = false;
+                    collect(this, taskResult, inFlight, sentAt, stats, myID);
+                    taskResult.release();
                 }
 
                 /* shut things down */
-                output.writeObject(new Manager.ShutdownTask());
-                socket.shutdownOutput();
-                output.close();
-                input.close();
-                socket.close();
+                channel.writeShutdown();
+                channel.close();
             } catch (ClassNotFoundException e) {
                 System.err.println("error in client " + myID + ":\n\t" + e);
+                tracker.lost(inFlight.values());
             } catch (IOException e) {
-                System.err.println("error in client " + myID + ":\n\t" + e);
+                if (tracker.isDone()) {
+                    System.out.printf("client %d abandoned with copies of finished tasks\n", myID);
+                } else {
+                    System.err.println("error in client " + myID + ":\n\t" + e);
+                }
+                tracker.lost(inFlight.values());
+            }
+            closeWindow(connectionWindow);
+        }
+
+        /**
+         * Close the connection if it is still waiting for results once every task
+         * is done, as those results can only be copies.
+         */
+        void abandon() {
+            if (awaitingResult) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    System.err.println("error closing client " + myID + ":\n\t" + e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs tasks on a thread of the manager's own process. Tasks come straight
+     * from the tracker, so local threads share the queue with the connections,
+     * and results are handed to a talker by reference.
+     */
+    private class LocalWorker implements Runnable {
+        private final int localID;
+
+        LocalWorker(int localID) {
+            this.localID = localID;
+        }
+
+        public void run() {
+            WorkerTalker collector = newTalker(taskQueue, localID, null);
+            Metrics.Stats stats = metrics.stats("local-" + localID);
+
+            while (true) {
+                Tasks t = tracker.take();
+
+                /* once the queue is empty, run lost or overdue tasks until every task is done */
+                if (t == null) {
+                    long idleSince = System.nanoTime();
+                    t = tracker.awaitSpare();
+                    stats.idleNanos.add(System.nanoTime() - idleSince);
+                    if (t == null) {
+                        break;
+                    }
+                }
+
+                long start = System.nanoTime();
+                Tasks.TaskResult taskResult = t.execute();
+                taskResult.setTaskID(t.getTaskID());
+                taskResult.setComputeNanos(System.nanoTime() - start);
+                record(stats, taskResult.getComputeNanos(), taskResult);
+
+                /* a partial of a single task, as there is nothing to send */
+                if (t.getReduction() != null) {
+                    Tasks.Partial partial = t.getReduction().map(taskResult);
+                    partial.cover(t.getTaskID(), taskResult.getComputeNanos());
+                    taskResult.release();
+                    taskResult = partial;
+                }
+
+                /* the first copy of a task to finish wins */
+                if (tracker.complete(taskResult.getTaskID())) {
+                    collector.addResults(taskResult);
+                }
+                taskResult.release();
             }
         }
     }
@@ -231,7 +628,15 @@ public abstract class Manager {
         }
 
         /**
-         * Check whether the queue is empty.
+         * Initialise a queue which generates its own tasks.
+         */
+        protected SynchTaskQueue() {
+            this.tasks = null;
+        }
+
+        /**
+         * Check whether the queue is empty. A queue fed while the job runs is only
+         * empty once no more tasks can arrive.
          * 
          * @return {@code true} if empty, {@code false} otherwise.
          */
@@ -240,9 +645,17 @@ public abstract class Manager {
         }
 
         /**
-         * Get a task from the queue.
+         * Get the number of tasks, or items of a task space, not yet handed out.
+         */
+        public synchronized int remaining() {
+            return tasks.size();
+        }
+
+        /**
+         * Get a task from the queue, without waiting for one.
          * 
-         * @return the next task, return null if the queue is empty.
+         * @return the next task, return null if the queue is empty or, for a queue
+         *         fed while the job runs, has no task at the moment.
          */
         public synchronized Tasks get() {
             if (tasks.isEmpty()) {
@@ -253,4 +666,203 @@ public abstract class Manager {
             }
         }
     }
+
+    /**
+     * Creates the task covering a block of consecutive items of a job.
+     * 
+     * @param <T> the type of task created
+     */
+    public interface TaskSpace<T extends Tasks> {
+
+        /**
+         * Create a task for items {@code first} to {@code first + count - 1}.
+         */
+        T makeTask(int first, int count);
+    }
+
+    /**
+     * Queue handing out blocks of a task space using guided self-scheduling. Each
+     * block is a fixed fraction of the items still remaining, so blocks are large
+     * while there is plenty of work and shrink to {@code minChunk} items at the
+     * tail, where they keep the workers balanced. No block is larger than {@code
+     * maxChunk} items, so that a task and its result stay bounded on a large job
+     * however few workers share it. Tasks are only created when they
+     * are handed out, and claiming a block is a single compare-and-set on the
+     * index of the next unclaimed item.
+     * 
+     * @param <T> parameterised to store any subclass T of Tasks
+     */
+    public class GuidedTaskQueue<T extends Tasks> extends SynchTaskQueue<T> {
+        private final int size;
+        private final int minChunk;
+        private final int maxChunk;
+        private final TaskSpace<T> space;
+        private final AtomicInteger next = new AtomicInteger();
+
+        /**
+         * Initialise with a task space.
+         * 
+         * @param size     the number of items in the task space
+         * @param minChunk the smallest number of items handed out at once
+         * @param space    creates the task for a block of items
+         */
+        public GuidedTaskQueue(int size, int minChunk, TaskSpace<T> space) {
+            this(size, minChunk, Integer.MAX_VALUE, space);
+        }
+
+        /**
+         * Initialise with a task space and a limit on the size of blocks, which
+         * wins over {@code minChunk}.
+         * 
+         * @param maxChunk the largest number of items handed out at once
+         */
+        public GuidedTaskQueue(int size, int minChunk, int maxChunk, TaskSpace<T> space) {
+            this.size = size;
+            this.maxChunk = Math.max(1, maxChunk);
+            this.minChunk = Math.min(Math.max(1, minChunk), this.maxChunk);
+            this.space = space;
+        }
+
+        /**
+         * Check whether the queue is empty.
+         * 
+         * @return {@code true} if empty, {@code false} otherwise.
+         */
+        @Override
+        public boolean isEmpty() {
+            return next.get() >= size;
+        }
+
+        @Override
+        public int remaining() {
+            return Math.max(0, size - next.get());
+        }
+
+        /**
+         * Get the next block of the task space.
+         * 
+         * @return the next task, return null if the queue is empty.
+         */
+        @Override
+        public Tasks get() {
+            while (true) {
+                int first = next.get();
+                if (first >= size) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                    return null;
+                }
+
+                /* every worker may hold a full window of blocks at once */
+                int remaining = size - first;
+                int divisor = 2 * Math.max(window, totalCredits.get());
+                int guided = Math.min(maxChunk, Math.max(minChunk, (remaining + divisor - 1) / divisor));
+                int count = Math.min(remaining, guided);
+
+                if (next.compareAndSet(first, first + count)) {
+                    return space.makeTask(first, count);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queue handing out blocks of a task space in order of estimated cost,
+     * largest first. The items are cut into consecutive blocks of roughly equal
+     * estimated cost, and handing the most expensive blocks out first lets the
+     * cheap blocks at the end even out the finishing times of the workers, so
+     * that an expensive block is never the last one left running.
+     * 
+     * @param <T> parameterised to store any subclass T of Tasks
+     */
+    public class CostTaskQueue<T extends Tasks> extends SynchTaskQueue<T> {
+        private final int[] blockFirst;
+        private final int[] blockCount;
+        private final TaskSpace<T> space;
+        private final AtomicInteger next = new AtomicInteger();
+
+        /**
+         * Initialise with a task space and the estimated cost of each item.
+         * 
+         * @param costs     the estimated cost of each item of the task space
+         * @param minChunk  the smallest number of items handed out at once
+         * @param numBlocks the number of blocks to aim for
+         * @param space     creates the task for a block of items
+         */
+        public CostTaskQueue(double[] costs, int minChunk, int numBlocks, TaskSpace<T> space) {
+            this.space = space;
+            minChunk = Math.max(1, minChunk);
+
+            /* cheap regions still get blocks of no more than a few times the average size */
+            int maxChunk = Math.max(minChunk, 4 * costs.length / Math.max(1, numBlocks));
+            double total = 0;
+            for (double cost : costs) {
+                total += cost;
+            }
+            double target = total / Math.max(1, numBlocks);
+
+            List<int[]> blocks = new ArrayList<>();
+            List<Double> blockCosts = new ArrayList<>();
+            int first = 0;
+            double cost = 0;
+            for (int i = 0; i < costs.length; i++) {
+                cost += costs[i];
+                int count = i + 1 - first;
+                if (i == costs.length - 1 || count >= maxChunk || (count >= minChunk && cost >= target)) {
+                    blocks.add(new int[] { first, count });
+                    blockCosts.add(cost);
+                    first = i + 1;
+                    cost = 0;
+                }
+            }
+
+            /* largest first */
+            Integer[] order = new Integer[blocks.size()];
+            for (int b = 0; b < order.length; b++) {
+                order[b] = b;
+            }
+            Arrays.sort(order, (x, y) -> Double.compare(blockCosts.get(y), blockCosts.get(x)));
+
+            blockFirst = new int[order.length];
+            blockCount = new int[order.length];
+            for (int b = 0; b < order.length; b++) {
+                blockFirst[b] = blocks.get(order[b])[0];
+                blockCount[b] = blocks.get(order[b])[1];
+            }
+        }
+
+        /**
+         * Check whether the queue is empty.
+         * 
+         * @return {@code true} if empty, {@code false} otherwise.
+         */
+        @Override
+        public boolean isEmpty() {
+            return next.get() >= blockFirst.length;
+        }
+
+        @Override
+        public int remaining() {
+            return Math.max(0, blockFirst.length - next.get());
+        }
+
+        /**
+         * Get the most expensive block not yet handed out.
+         * 
+         * @return the next task, return null if the queue is empty.
+         */
+        @Override
+        public Tasks get() {
+            int b = next.getAndIncrement();
+            if (b >= blockFirst.length) {
+                next.set(blockFirst.length);
+                synchronized (this) {
+                    notifyAll();
+                }
+                return null;
+            }
+            return space.makeTask(blockFirst[b], blockCount[b]);
+        }
+    }
 }
@@ -0,0 +1,315 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.MathContext;
+
+/**
+ * Task computing a block of consecutive rows of a deep zoom by perturbation.
+ *
+ * Past a zoom of about 1e-14 neighbouring points can no longer be told apart in
+ * double precision. Instead, a single reference orbit Z at the centre of the view
+ * is computed once per job in BigDecimal, and every point c = C + dc is iterated
+ * as its difference d from that orbit, which stays small enough for doubles:
+ *
+ * d' = 2 Z d + d^2 + dc
+ *
+ * A point is glitched when the reference orbit stops describing it, which shows
+ * as |Z + d| falling below |d|, and the reference orbit may escape before the
+ * point does. In either case the point is rebased: its full value Z + d becomes
+ * its difference from the start of the reference orbit, where Z = 0, and
+ * iteration carries on. Counts therefore match direct iteration up to rounding,
+ * at about the cost of double iteration. Differences below about 1e-300 underflow,
+ * which bounds the zoom.
+ */
+public class MandelbrotDeepTask extends Tasks implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Number of points on real and imaginary axes */
+    private final int NUM_REAL_POINTS;
+    private final int NUM_IMAGINARY_POINTS;
+
+    /* Width of the view along each axis */
+    private final double REAL_SPAN;
+    private final double IMAGINARY_SPAN;
+
+    /* Maximum number of iterations for each grid point */
+    private final int MAX_ITERATIONS;
+
+    /* The orbit of the centre of the view */
+    private final ReferenceOrbit orbit;
+
+    /* The index of the first row to calculate in this task */
+    final int rowIndex;
+
+    /* The number of consecutive rows to calculate in this task */
+    final int rowCount;
+
+    /**
+     * Construct a task covering a block of consecutive rows.
+     *
+     * @param rowIndex       the index of the first row being calculated
+     * @param rowCount       the number of rows being calculated
+     * @param REAL_SPAN      the width of the view along the real axis
+     * @param IMAGINARY_SPAN the width of the view along the imaginary axis
+     * @param orbit          the orbit of the centre of the view
+     */
+    public MandelbrotDeepTask(int rowIndex, int rowCount, int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_SPAN, double IMAGINARY_SPAN, ReferenceOrbit orbit) {
+        this.rowIndex = rowIndex;
+        this.rowCount = rowCount;
+        this.MAX_ITERATIONS = MAX_ITERATIONS;
+        this.NUM_REAL_POINTS = NUM_REAL_POINTS;
+        this.NUM_IMAGINARY_POINTS = NUM_IMAGINARY_POINTS;
+        this.REAL_SPAN = REAL_SPAN;
+        this.IMAGINARY_SPAN = IMAGINARY_SPAN;
+        this.orbit = orbit;
+    }
+
+    /**
+     * Execute the calculations for this block of rows.
+     *
+     * @return the counts of the rows, one after another.
+     */
+    @Override
+    public TaskResult execute() {
+        int rowLength = NUM_IMAGINARY_POINTS + 1;
+        int[] rowResult = MandelbrotTask.RowPool.acquire(rowCount * rowLength);
+
+        for (int i = 0; i < rowCount; i++) {
+            double dcReal = (((double) (rowIndex + i)) / ((double) NUM_REAL_POINTS) - 0.5) * REAL_SPAN;
+            for (int j = 0; j < rowLength; j++) {
+                double dcImaginary = (((double) j) / ((double) NUM_IMAGINARY_POINTS) - 0.5) * IMAGINARY_SPAN;
+                rowResult[i * rowLength + j] = escapeTime(orbit, dcReal, dcImaginary, MAX_ITERATIONS);
+            }
+        }
+        return new MandelbrotTask.MandelbrotTaskResult(rowIndex, rowCount, rowLength, rowResult);
+    }
+
+    /**
+     * Count the iterations before the point at the given offset from the
+     * reference point escapes. The count is that of
+     * {@link MandelbrotTask#escapeTime}: the number of iterations before |z^2|
+     * exceeds 2.
+     *
+     * @param orbit         the orbit of the reference point
+     * @param dcReal        the real part of the offset
+     * @param dcImaginary   the imaginary part of the offset
+     * @param maxIterations the largest count
+     */
+    static int escapeTime(ReferenceOrbit orbit, double dcReal, double dcImaginary, int maxIterations) {
+        double[] zReal = orbit.real;
+        double[] zImaginary = orbit.imaginary;
+        int last = orbit.length - 1;
+
+        double dReal = 0;
+        double dImaginary = 0;
+        int m = 0; // index in the reference orbit
+        int k = 0;
+
+        while (k < maxIterations) {
+            /* d' = 2 Z d + d^2 + dc */
+            double newReal = 2 * (zReal[m] * dReal - zImaginary[m] * dImaginary) + dReal * dReal
+                    - dImaginary * dImaginary + dcReal;
+            dImaginary = 2 * (zReal[m] * dImaginary + zImaginary[m] * dReal) + 2 * dReal * dImaginary + dcImaginary;
+            dReal = newReal;
+            m++;
+
+            double real = zReal[m] + dReal;
+            double imaginary = zImaginary[m] + dImaginary;
+            double magnitude = real * real + imaginary * imaginary;
+            if (magnitude * magnitude > 4) {
+                break;
+            }
+            k++;
+
+            /* rebase a glitched point, or one outliving the reference orbit */
+            if (magnitude < dReal * dReal + dImaginary * dImaginary || m == last) {
+                dReal = real;
+                dImaginary = imaginary;
+                m = 0;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Describes the rows of a deep zoom as a task space.
+     */
+    public static Manager.TaskSpace<MandelbrotDeepTask> taskSpace(int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_SPAN, double IMAGINARY_SPAN, ReferenceOrbit orbit) {
+        return (first, count) -> new MandelbrotDeepTask(first, count, MAX_ITERATIONS, NUM_REAL_POINTS,
+                NUM_IMAGINARY_POINTS, REAL_SPAN, IMAGINARY_SPAN, orbit);
+    }
+
+    /**
+     * Provides information about the task as a string.
+     */
+    @Override
+    public String toString() {
+        return "deep zoom task with row indices = " + rowIndex + " to " + (rowIndex + rowCount - 1);
+    }
+
+    /**
+     * The orbit of a reference point, computed in BigDecimal and kept in doubles.
+     * The orbit starts at Z = 0 and ends once it escapes or reaches the iteration
+     * limit.
+     */
+    public static class ReferenceOrbit implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /* Values past which the orbit is no longer needed */
+        private static final BigDecimal ESCAPE_RADIUS_SQUARED = BigDecimal.valueOf(4);
+
+        final double[] real;
+        final double[] imaginary;
+        final int length;
+
+        ReferenceOrbit(double[] real, double[] imaginary, int length) {
+            this.real = real;
+            this.imaginary = imaginary;
+            this.length = length;
+        }
+
+        /**
+         * Compute the orbit of a point.
+         *
+         * @param cReal         the real part of the point
+         * @param cImaginary    the imaginary part of the point
+         * @param maxIterations the most iterations to compute
+         * @param digits        the number of significant digits to compute with
+         */
+        public static ReferenceOrbit compute(BigDecimal cReal, BigDecimal cImaginary, int maxIterations,
+                int digits) {
+            MathContext mc = new MathContext(digits);
+            double[] real = new double[maxIterations + 2];
+            double[] imaginary = new double[maxIterations + 2];
+
+            BigDecimal zReal = BigDecimal.ZERO;
+            BigDecimal zImaginary = BigDecimal.ZERO;
+            int n = 1;
+            for (; n < real.length; n++) {
+                BigDecimal zRealSquared = zReal.multiply(zReal, mc);
+                BigDecimal zImaginarySquared = zImaginary.multiply(zImaginary, mc);
+                BigDecimal newReal = zRealSquared.subtract(zImaginarySquared, mc).add(cReal, mc);
+                zImaginary = zReal.multiply(zImaginary, mc).multiply(BigDecimal.valueOf(2), mc).add(cImaginary, mc);
+                zReal = newReal;
+
+                real[n] = zReal.doubleValue();
+                imaginary[n] = zImaginary.doubleValue();
+                if (zReal.multiply(zReal, mc).add(zImaginary.multiply(zImaginary, mc), mc)
+                        .compareTo(ESCAPE_RADIUS_SQUARED) > 0) {
+                    n++;
+                    break;
+                }
+            }
+            return new ReferenceOrbit(real, imaginary, n);
+        }
+
+        /**
+         * Get the number of significant digits needed to place points the given
+         * distance apart around a point of magnitude about 1.
+         */
+        public static int digitsFor(double spacing) {
+            return 10 + Math.max(0, (int) Math.ceil(-Math.log10(spacing)));
+        }
+
+        /**
+         * Write the orbit.
+         */
+        void write(DataOutput out) throws IOException {
+            out.writeInt(length);
+            for (int n = 0; n < length; n++) {
+                out.writeDouble(real[n]);
+                out.writeDouble(imaginary[n]);
+            }
+        }
+
+        /**
+         * Read an orbit written by {@link #write}.
+         */
+        static ReferenceOrbit read(DataInput in) throws IOException {
+            int length = in.readInt();
+            double[] real = new double[length];
+            double[] imaginary = new double[length];
+            for (int n = 0; n < length; n++) {
+                real[n] = in.readDouble();
+                imaginary[n] = in.readDouble();
+            }
+            return new ReferenceOrbit(real, imaginary, length);
+        }
+    }
+
+    /**
+     * Codec for MandelbrotDeepTasks. The reference orbit is sent once per
+     * connection with the job, leaving only the block of rows in each task.
+     * Results are those of MandelbrotTask.
+     */
+    public static class DeepCodec extends MandelbrotTask.MandelbrotCodec {
+        private int maxIterations;
+        private int numRealPoints;
+        private int numImaginaryPoints;
+        private double realSpan;
+        private double imaginarySpan;
+        private ReferenceOrbit orbit;
+
+        /**
+         * Construct a codec to be initialised by {@link #readJob}.
+         */
+        public DeepCodec() {
+        }
+
+        /**
+         * Construct a codec for a job with the given parameters.
+         */
+        public DeepCodec(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_SPAN,
+                double IMAGINARY_SPAN, ReferenceOrbit orbit) {
+            this.maxIterations = MAX_ITERATIONS;
+            this.numRealPoints = NUM_REAL_POINTS;
+            this.numImaginaryPoints = NUM_IMAGINARY_POINTS;
+            this.realSpan = REAL_SPAN;
+            this.imaginarySpan = IMAGINARY_SPAN;
+            this.orbit = orbit;
+        }
+
+        @Override
+        public void writeJob(DataOutput out) throws IOException {
+            out.writeByte(resultEncoding);
+            out.writeInt(maxIterations);
+            out.writeInt(numRealPoints);
+            out.writeInt(numImaginaryPoints);
+            out.writeDouble(realSpan);
+            out.writeDouble(imaginarySpan);
+            orbit.write(out);
+            writeReduction(out);
+        }
+
+        @Override
+        public void readJob(DataInput in) throws IOException {
+            resultEncoding = in.readByte();
+            maxIterations = in.readInt();
+            numRealPoints = in.readInt();
+            numImaginaryPoints = in.readInt();
+            realSpan = in.readDouble();
+            imaginarySpan = in.readDouble();
+            orbit = ReferenceOrbit.read(in);
+            readReduction(in);
+        }
+
+        @Override
+        public void writeTask(DataOutput out, Tasks task) throws IOException {
+            MandelbrotDeepTask rows = (MandelbrotDeepTask) task;
+            out.writeInt(rows.rowIndex);
+            out.writeInt(rows.rowCount);
+        }
+
+        @Override
+        public Tasks readTask(DataInput in) throws IOException {
+            return reduced(new MandelbrotDeepTask(in.readInt(), in.readInt(), maxIterations, numRealPoints,
+                    numImaginaryPoints, realSpan, imaginarySpan, orbit));
+        }
+    }
+}
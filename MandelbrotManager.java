@@ -1,7 +1,22 @@
-import java.io.FileNotFoundException;
+import java.io.File;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Class for hosting a Mandelbrot Manager. Contains the parameters for the
@@ -9,8 +24,8 @@ import java.net.Socket;
  */
 public class MandelbrotManager extends Manager {
     /* Number of points on real and imaginary axes */
-    private static final int NUM_REAL_POINTS = 3000;
-    private static final int NUM_IMAGINARY_POINTS = 2000;
+    private static final int NUM_REAL_POINTS = Integer.getInteger("mandelbrot.realPoints", 3000);
+    private static final int NUM_IMAGINARY_POINTS = Integer.getInteger("mandelbrot.imaginaryPoints", 2000);
 
     /* Maximum and minimum values for each axis */
     private static final double REAL_MIN_Z = -2.0f;
@@ -19,19 +34,201 @@ public class MandelbrotManager extends Manager {
     private static final double IMAGINARY_MAX_Z = 1.0f;
 
     /* The calculated grid points */
-    private final int[][] mandelbrotGrid = new int[NUM_REAL_POINTS + 1][NUM_IMAGINARY_POINTS + 1];
+    private final ResultGrid mandelbrotGrid;
 
     /* Maximum number of iterations for each grid point */
-    private static final int MAX_ITERATIONS = 200;
+    private static final int MAX_ITERATIONS = Integer.getInteger("mandelbrot.iterations", 200);
 
-    /* Real and imaginary components of z */
-    private double zReal, zImaginary;
+    /*
+     * Whether to render a deep zoom by perturbation around the centre, given to
+     * any precision, with the width of the view along the real axis. A deep zoom
+     * always uses the guided queue.
+     */
+    private static final boolean DEEP = Boolean.getBoolean("mandelbrot.deep");
+    private static final BigDecimal CENTRE_REAL = new BigDecimal(System.getProperty("mandelbrot.centreReal", "-0.5"));
+    private static final BigDecimal CENTRE_IMAGINARY = new BigDecimal(
+            System.getProperty("mandelbrot.centreImaginary", "0"));
+    private static final double REAL_SPAN = Double.parseDouble(System.getProperty("mandelbrot.span", "3"));
+    private static final double IMAGINARY_SPAN = REAL_SPAN * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
+            / (REAL_MAX_Z - REAL_MIN_Z);
+
+    /* Bounds of the view recorded in the output, rounded to doubles for a deep zoom */
+    private static final double VIEW_REAL_MIN = DEEP ? CENTRE_REAL.doubleValue() - REAL_SPAN / 2 : REAL_MIN_Z;
+    private static final double VIEW_REAL_MAX = DEEP ? CENTRE_REAL.doubleValue() + REAL_SPAN / 2 : REAL_MAX_Z;
+    private static final double VIEW_IMAGINARY_MIN = DEEP ? CENTRE_IMAGINARY.doubleValue() - IMAGINARY_SPAN / 2
+            : IMAGINARY_MIN_Z;
+    private static final double VIEW_IMAGINARY_MAX = DEEP ? CENTRE_IMAGINARY.doubleValue() + IMAGINARY_SPAN / 2
+            : IMAGINARY_MAX_Z;
+
+    /* The orbit of the centre of a deep zoom */
+    private MandelbrotDeepTask.ReferenceOrbit referenceOrbit;
+
+    /* The arithmetic of the kernel, a KernelPrecision */
+    private byte precision = KernelPrecision.DOUBLE;
+
+    /* Number of tasks in flight per worker connection */
+    private static final int PIPELINE_WINDOW = Integer.getInteger("mandelbrot.window", 4);
+
+    /*
+     * Task queue, "guided" for chunks of rows, "cost" for blocks of rows handed out
+     * largest first, "tiles" for square tiles computed by subdivision, or "list"
+     * for one task per row
+     */
+    private static final String QUEUE = System.getProperty("mandelbrot.queue", "guided");
+
+    /* Number of blocks of rows the cost queue aims for */
+    private static final int COST_BLOCKS = Integer.getInteger("mandelbrot.costBlocks", 1024);
+
+    /* Spacing of the rows and columns sampled to estimate the cost of each row */
+    private static final int COST_STEP = Integer.getInteger("mandelbrot.costStep", 8);
+
+    /* Number of rows and of points per row in each tile of the tiles queue */
+    private static final int TILE_SIZE = Integer.getInteger("mandelbrot.tileSize", 64);
+
+    /* Smallest number of rows handed out in one task by the guided queue */
+    private static final int MIN_CHUNK = Integer.getInteger("mandelbrot.minChunk", 2);
+
+    /* Most points in one task of the guided queue, bounding the buffer of its result */
+    private static final int MAX_TASK_POINTS = Integer.getInteger("mandelbrot.maxTaskPoints", 1 << 22);
+    private static final int MAX_CHUNK = Math.max(1, MAX_TASK_POINTS / (NUM_IMAGINARY_POINTS + 1));
+
+    /* Whether to skip interior points with the escape-time shortcuts */
+    private static final boolean SHORTCUTS = Boolean.getBoolean("mandelbrot.shortcuts");
+
+    /*
+     * Arithmetic of the kernel, "double", "float", "doubledouble", or "auto" for
+     * the cheapest one resolving the spacing of the points of the view rendered.
+     * A deep zoom always iterates its perturbations in double, which resolve
+     * any spacing, so the setting is ignored there.
+     */
+    private static final String PRECISION = System.getProperty("mandelbrot.precision", "double");
+
+    /*
+     * Whether to compare the counts of the chosen precision with those of double
+     * on every VALIDATE_STEP-th row before the job starts. Under "auto" float is
+     * always validated, and only kept if at most a fraction PRECISION_TOLERANCE of
+     * the sampled points differ.
+     */
+    private static final boolean VALIDATE_PRECISION = Boolean.getBoolean("mandelbrot.validatePrecision");
+    private static final int VALIDATE_STEP = Integer.getInteger("mandelbrot.validateStep", 16);
+    private static final double PRECISION_TOLERANCE = Double
+            .parseDouble(System.getProperty("mandelbrot.precisionTolerance", "0"));
+
+    /* Wire protocol, "binary" or "object" */
+    private static final String PROTOCOL = System.getProperty("mandelbrot.protocol", "binary");
+
+    /* Encoding of the counts of results in the binary protocol, "raw", "packed" or "deflated" */
+    private static final byte RESULT_ENCODING = MandelbrotTask.MandelbrotCodec
+            .resultEncoding(System.getProperty("mandelbrot.resultEncoding", "raw"));
+
+    /* Event loop threads serving all workers, 0 for a thread per worker */
+    private static final int SELECTOR_THREADS = Integer.getInteger("mandelbrot.selectorThreads", 0);
+
+    /*
+     * Where tasks run, "remote" on workers, "local" on threads of this process,
+     * or "hybrid" on both
+     */
+    private static final String MODE = System.getProperty("mandelbrot.mode", "remote");
+
+    /* Number of threads running tasks locally, 0 for one per core */
+    private static final int LOCAL_THREADS = Integer.getInteger("mandelbrot.localThreads", 0);
+
+    /* Whether to copy overdue tasks to idle workers at the end of the job */
+    private static final boolean SPECULATE = Boolean.parseBoolean(System.getProperty("mandelbrot.speculate", "true"));
 
     /* Constant string values */
-    private static final String SPACE = " ";
     private static final String USAGE_MESSAGE = "parameters: portNum";
-    private static final String FILENAME = "mandelbrot.dat";
-    private static final String ENCODING = "UTF-8";
+    private static final String FILENAME = "mandelbrot";
+
+    /* Output format, "text", "binary", "pgm" or "png" */
+    private static final String FORMAT = System.getProperty("mandelbrot.format", "text");
+
+    /* Grid storage, "heap" or "mapped" to keep the grid in a binary format file */
+    private static final String GRID = System.getProperty("mandelbrot.grid", "heap");
+
+    /* Whether to reuse bands of rows computed by earlier runs */
+    private static final boolean CACHE = Boolean.getBoolean("mandelbrot.cache");
+
+    /* Directory and limits in megabytes of the tile cache */
+    private static final String CACHE_DIR = System.getProperty("mandelbrot.cacheDir", "tile-cache");
+    private static final int CACHE_MEMORY_MB = Integer.getInteger("mandelbrot.cacheMemoryMB", 64);
+    private static final int CACHE_DISK_MB = Integer.getInteger("mandelbrot.cacheDiskMB", 512);
+
+    /* Number of rows in each band of the grid cached as one tile */
+    private static final int CACHE_ROWS = Integer.getInteger("mandelbrot.cacheRows", 16);
+    private static final int NUM_BANDS = (NUM_REAL_POINTS + CACHE_ROWS - 1) / CACHE_ROWS;
+
+    /* The tile cache, or null if not used */
+    private TileCache cache;
+
+    /* Whether each band must be cached once computed, and the number of its points received */
+    private boolean[] bandMissing;
+    private AtomicIntegerArray bandReceived;
+
+    /*
+     * Whether to journal results to FILENAME.journal, so that an interrupted render
+     * resumes where it stopped, and the longest time results wait to reach the disk
+     */
+    private static final boolean JOURNAL = Boolean.getBoolean("mandelbrot.journal");
+    private static final int JOURNAL_SYNC_MS = Integer.getInteger("mandelbrot.journalSyncMs", 1000);
+
+    /* The journal, or null if not used */
+    private ResultJournal journal;
+
+    /*
+     * Data to derive on the workers in place of the grid, any of "histogram",
+     * "area" and "preview", or empty for the grid. Workers combine the summaries
+     * of up to REDUCE_BATCH tasks before sending them, and the preview averages
+     * squares of PREVIEW_SCALE points. The journal, tile cache and speculation are
+     * not used for summaries.
+     */
+    private static final String REDUCE = System.getProperty("mandelbrot.reduce", "");
+    private static final int REDUCE_BATCH = Integer.getInteger("mandelbrot.reduceBatch", 32);
+    private static final int PREVIEW_SCALE = Integer.getInteger("mandelbrot.previewScale", 8);
+
+    /*
+     * Keyframes of a sequence of FRAMES frames rendered as one job, given as
+     * "centreReal,centreImaginary,span" separated by semicolons, or empty for a
+     * single view. Frames are handed out in order in blocks of SEQUENCE_CHUNK rows,
+     * so the next frame fills the workers while a frame's last rows finish, and
+     * each frame is written as "mandelbrot-00000" in the chosen format once
+     * complete. At most FRAME_BUFFERS frames are held at once, being filled or
+     * waiting to be written; blocks of a later frame are only handed out once an
+     * earlier frame is written, so a slow writer holds back the workers rather
+     * than the threads collecting results. Each frame is computed in the precision
+     * its own view needs, chosen as for mandelbrot.precision.
+     */
+    private static final String SEQUENCE = System.getProperty("mandelbrot.sequence", "");
+    private static final int FRAMES = Integer.getInteger("mandelbrot.frames", 100);
+    private static final int SEQUENCE_CHUNK = Integer.getInteger("mandelbrot.sequenceChunk", 8);
+    private static final int FRAME_BUFFERS = Math.max(2, Integer.getInteger("mandelbrot.frameBuffers", 4));
+
+    /* The sequence, or null for a single view */
+    private MandelbrotSequence sequence;
+
+    /* The arithmetic of each frame of the sequence, a KernelPrecision */
+    private byte[] framePrecisions;
+
+    /* Frames with results, by number, grids of written frames for reuse */
+    private final Map<Integer, Frame> frames = new ConcurrentHashMap<>();
+    private final Queue<ResultGrid> spareGrids = new ConcurrentLinkedQueue<>();
+
+    /* Number of frames written, and of frames done with whether written or not */
+    private final AtomicInteger framesWritten = new AtomicInteger();
+    private final AtomicInteger framesDone = new AtomicInteger();
+
+    /* Writes complete frames in the background */
+    private ExecutorService frameWriter;
+
+    /* Talkers which have collected summaries, combined once the job is done */
+    private final List<MandelbrotWorkerTalker> collectors = Collections.synchronizedList(new ArrayList<>());
+
+    /* Whether each row must be computed, null until restoring results */
+    private boolean[] rowMissing;
+
+    /* Time workers spent computing the collected results, and spent storing them */
+    private final LongAdder computeNanos = new LongAdder();
+    private final LongAdder collectNanos = new LongAdder();
 
     /**
      * Construct a Mandelbrot manager instance.
@@ -39,7 +236,46 @@ public class MandelbrotManager extends Manager {
      * @param port the port number to host on.
      */
     public MandelbrotManager(int port) {
-        super(port);
+        /* a worker holds a batch of tasks while combining their summaries */
+        super(port, REDUCE.isEmpty() ? PIPELINE_WINDOW : PIPELINE_WINDOW + REDUCE_BATCH);
+        selectorThreads = SELECTOR_THREADS;
+        speculate = SPECULATE && REDUCE.isEmpty();
+        if (!MODE.equals("remote")) {
+            localWorkers = LOCAL_THREADS > 0 ? LOCAL_THREADS : Runtime.getRuntime().availableProcessors();
+            acceptWorkers = MODE.equals("hybrid");
+        }
+        if (!SEQUENCE.isEmpty()) {
+            sequence = MandelbrotSequence.parse(SEQUENCE, FRAMES, REAL_MAX_Z - REAL_MIN_Z,
+                    IMAGINARY_MAX_Z - IMAGINARY_MIN_Z);
+            frameWriter = Executors.newSingleThreadExecutor(r -> new Thread(r, "frame-writer"));
+            if (!REDUCE.isEmpty()) {
+                System.out.println("summaries are not kept for sequences, writing every frame");
+            }
+        } else if (!REDUCE.isEmpty()) {
+            reduction = new MandelbrotSummary.Reduction(MandelbrotSummary.Reduction.parts(REDUCE), MAX_ITERATIONS,
+                    NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, PREVIEW_SCALE, REDUCE_BATCH);
+        }
+        mandelbrotGrid = reduction == null && sequence == null ? createGrid() : null;
+    }
+
+    /**
+     * Create the storage for the calculated grid points.
+     */
+    private static ResultGrid createGrid() {
+        if (!GRID.equals("mapped")) {
+            return new ResultGrid.HeapGrid(NUM_REAL_POINTS + 1, NUM_IMAGINARY_POINTS + 1);
+        }
+
+        try {
+            return new ResultGrid.MappedGrid(FILENAME + ".bin", ResultWriter.binaryHeader(MAX_ITERATIONS,
+                    NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, VIEW_REAL_MIN, VIEW_REAL_MAX, VIEW_IMAGINARY_MIN,
+                    VIEW_IMAGINARY_MAX),
+                    NUM_REAL_POINTS + 1, NUM_IMAGINARY_POINTS + 1);
+        } catch (IOException e) {
+            System.err.println("error mapping result grid:\n\t" + e);
+            System.exit(1);
+            return null;
+        }
     }
 
     /**
@@ -56,53 +292,569 @@ public class MandelbrotManager extends Manager {
         }
 
         MandelbrotManager manager = new MandelbrotManager(port);
+        long start = System.nanoTime();
         manager.createTaskQueue();
-        manager.process();
+        long created = System.nanoTime();
+        if (!manager.taskQueue.isEmpty()) {
+            manager.process();
+        }
+        long processed = System.nanoTime();
         manager.writeResults();
+        long written = System.nanoTime();
+
+        /* compute is summed over every worker thread, and collect over every connection */
+        System.out.printf("phases: create=%d process=%d compute=%d collect=%d write=%d ms\n",
+                (created - start) / 1000000, (processed - created) / 1000000, manager.computeNanos.sum() / 1000000,
+                manager.collectNanos.sum() / 1000000, (written - processed) / 1000000);
     }
 
     /**
      * Build a queue of tasks for processing by workers.
      */
     protected void createTaskQueue() {
-        taskQueue = new SynchTaskQueue<>(MandelbrotTask.makeTasks(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS,
-                REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z));
+        if (sequence != null) {
+            if (JOURNAL || CACHE) {
+                System.out.println("sequences are neither journaled nor cached");
+            }
+            System.out.printf("rendering %d frames\n", sequence.frames());
+            chooseFramePrecisions();
+            taskQueue = new SequenceQueue();
+            return;
+        }
+
+        if (DEEP) {
+            long start = System.currentTimeMillis();
+            int digits = MandelbrotDeepTask.ReferenceOrbit.digitsFor(REAL_SPAN / NUM_REAL_POINTS);
+            referenceOrbit = MandelbrotDeepTask.ReferenceOrbit.compute(CENTRE_REAL, CENTRE_IMAGINARY, MAX_ITERATIONS,
+                    digits);
+            System.out.printf("computed reference orbit of %d points to %d digits in %d ms\n",
+                    referenceOrbit.length, digits, System.currentTimeMillis() - start);
+            if (!PRECISION.equals("double") && !PRECISION.equals("auto")) {
+                System.out.printf("a deep zoom iterates perturbations in double, ignoring %s precision\n", PRECISION);
+            }
+        } else {
+            choosePrecision();
+        }
+
+        /* the bookkeeping of restored rows is only needed with a journal or cache */
+        int missing = NUM_REAL_POINTS;
+        if (reduction != null) {
+            if (JOURNAL || CACHE) {
+                System.out.println("summaries are neither journaled nor cached");
+            }
+        } else if (JOURNAL || CACHE) {
+            missing = restoreResults();
+        }
+        if (missing == 0) {
+            System.out.println("every row was restored, nothing to compute");
+            taskQueue = new SynchTaskQueue<>(new ArrayList<Tasks>());
+        } else if (missing < NUM_REAL_POINTS) {
+            taskQueue = new SynchTaskQueue<>(missingTasks());
+        } else if (DEEP) {
+            taskQueue = new GuidedTaskQueue<>(NUM_REAL_POINTS, MIN_CHUNK, MAX_CHUNK,
+                    MandelbrotDeepTask.taskSpace(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_SPAN,
+                            IMAGINARY_SPAN, referenceOrbit));
+        } else if (QUEUE.equals("guided")) {
+            taskQueue = new GuidedTaskQueue<>(NUM_REAL_POINTS, MIN_CHUNK, MAX_CHUNK,
+                    MandelbrotTask.taskSpace(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z,
+                            REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, precision));
+        } else if (QUEUE.equals("cost")) {
+            long start = System.currentTimeMillis();
+            double[] costs = MandelbrotTask.estimateRowCosts(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS,
+                    REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, COST_STEP);
+            System.out.printf("estimated row costs in %d ms\n", System.currentTimeMillis() - start);
+            taskQueue = new CostTaskQueue<>(costs, MIN_CHUNK, COST_BLOCKS, MandelbrotTask.taskSpace(MAX_ITERATIONS,
+                    NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z,
+                    SHORTCUTS, precision));
+        } else if (QUEUE.equals("tiles")) {
+            taskQueue = new SynchTaskQueue<>(MandelbrotTileTask.makeTasks(MAX_ITERATIONS, NUM_REAL_POINTS,
+                    NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS,
+                    precision, TILE_SIZE));
+        } else {
+            taskQueue = new SynchTaskQueue<>(MandelbrotTask.makeTasks(MAX_ITERATIONS, NUM_REAL_POINTS,
+                    NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS,
+                    precision));
+        }
+    }
+
+    /**
+     * Choose the arithmetic of the kernel, validating it against double if asked
+     * to. Under "auto" it is the cheapest one resolving the spacing of the points
+     * of the view rendered, and a float kernel differing from double at more than
+     * the tolerated fraction of the sampled points gives way to double.
+     */
+    private void choosePrecision() {
+        boolean auto = PRECISION.equals("auto");
+        if (auto) {
+            precision = KernelPrecision.forView(NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, VIEW_REAL_MIN, VIEW_REAL_MAX,
+                    VIEW_IMAGINARY_MIN, VIEW_IMAGINARY_MAX);
+        } else {
+            precision = KernelPrecision.parse(PRECISION);
+        }
+
+        if (precision != KernelPrecision.DOUBLE
+                && (VALIDATE_PRECISION || (auto && precision == KernelPrecision.FLOAT))) {
+            double mismatch = validatePrecision();
+            if (auto && precision == KernelPrecision.FLOAT && mismatch > PRECISION_TOLERANCE) {
+                System.out.println("float differs from double at more points than tolerated, using double");
+                precision = KernelPrecision.DOUBLE;
+            }
+        }
+        System.out.printf("computing in %s precision\n", KernelPrecision.name(precision));
+    }
+
+    /**
+     * Choose the arithmetic of each frame of the sequence from its view. Under
+     * "auto" a frame is computed in double unless its points are too close
+     * together, when it is computed in double-double. Float is left out, as it is
+     * only kept once validated against double, which is not done frame by frame.
+     * A precision given explicitly is used for every frame, with a warning if it
+     * cannot resolve some of them.
+     */
+    private void chooseFramePrecisions() {
+        boolean auto = PRECISION.equals("auto");
+        byte given = KernelPrecision.parse(PRECISION);
+        framePrecisions = new byte[sequence.frames()];
+        int narrow = 0;
+        int firstNarrow = -1;
+        for (int f = 0; f < framePrecisions.length; f++) {
+            double[] view = sequence.view(f);
+            boolean tooNarrow = KernelPrecision.forView(NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, view[0], view[1],
+                    view[2], view[3]) == KernelPrecision.DOUBLE_DOUBLE;
+            if (tooNarrow) {
+                narrow++;
+                firstNarrow = firstNarrow < 0 ? f : firstNarrow;
+            }
+            if (auto) {
+                framePrecisions[f] = tooNarrow ? KernelPrecision.DOUBLE_DOUBLE : KernelPrecision.DOUBLE;
+            } else {
+                framePrecisions[f] = given;
+            }
+        }
+
+        if (auto) {
+            System.out.printf("computing %d frames in double and %d in doubledouble precision\n",
+                    framePrecisions.length - narrow, narrow);
+            return;
+        }
+        if (narrow > 0 && given != KernelPrecision.DOUBLE_DOUBLE) {
+            System.err.printf("warning: %d frames, from frame %d, are too narrow for %s precision, "
+                    + "use auto or doubledouble\n", narrow, firstNarrow, KernelPrecision.name(given));
+        }
+        System.out.printf("computing in %s precision\n", KernelPrecision.name(given));
+    }
+
+    /**
+     * Compare the counts of the chosen precision with those of double on every
+     * VALIDATE_STEP-th row.
+     *
+     * @return the fraction of the sampled points whose counts differ.
+     */
+    private double validatePrecision() {
+        long start = System.currentTimeMillis();
+        int rowLength = NUM_IMAGINARY_POINTS + 1;
+        int[] reference = new int[rowLength];
+        int[] counts = new int[rowLength];
+        long points = 0;
+        long differing = 0;
+        int largest = 0;
+
+        for (int i = 0; i < NUM_REAL_POINTS; i += Math.max(1, VALIDATE_STEP)) {
+            KernelPrecision.computeRow(KernelPrecision.DOUBLE, i, MAX_ITERATIONS, NUM_REAL_POINTS,
+                    NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, reference, 0);
+            KernelPrecision.computeRow(precision, i, MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS,
+                    REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, counts, 0);
+            for (int j = 0; j < rowLength; j++) {
+                int difference = Math.abs(counts[j] - reference[j]);
+                if (difference > 0) {
+                    differing++;
+                    largest = Math.max(largest, difference);
+                }
+            }
+            points += rowLength;
+        }
+
+        System.out.printf("%s differs from double at %d of %d sampled points, by up to %d iterations, in %d ms\n",
+                KernelPrecision.name(precision), differing, points, largest, System.currentTimeMillis() - start);
+        return (double) differing / points;
+    }
+
+    /**
+     * Fill the grid with the results of an earlier run found in the journal and
+     * the tile cache.
+     *
+     * @return the number of rows still to be computed.
+     */
+    private int restoreResults() {
+        rowMissing = new boolean[NUM_REAL_POINTS];
+        Arrays.fill(rowMissing, true);
+
+        ResultJournal.Restored restored = null;
+        if (JOURNAL) {
+            try {
+                journal = new ResultJournal(new File(FILENAME + ".journal"), jobKey(), mandelbrotGrid,
+                        JOURNAL_SYNC_MS);
+                restored = journal.restored();
+            } catch (IOException e) {
+                System.err.println("error opening journal, results will not be journaled:\n\t" + e);
+            }
+        }
+        for (int i = 0; restored != null && i < NUM_REAL_POINTS; i++) {
+            rowMissing[i] = !restored.isComplete(i);
+        }
+
+        if (CACHE) {
+            readCache(restored);
+        }
+
+        int missing = 0;
+        for (boolean m : rowMissing) {
+            missing += m ? 1 : 0;
+        }
+        return missing;
+    }
+
+    /**
+     * Open the tile cache and fill the grid with every band found in it. Bands
+     * restored from the journal are cached straight away; bands partly restored
+     * are left uncached until a later run.
+     *
+     * @param restored the points restored from the journal, or null if none were
+     */
+    private void readCache(ResultJournal.Restored restored) {
+        try {
+            cache = new TileCache(new File(CACHE_DIR), CACHE_MEMORY_MB * (1L << 20), CACHE_DISK_MB * (1L << 20));
+        } catch (IOException e) {
+            System.err.println("error opening tile cache, computing every band:\n\t" + e);
+            return;
+        }
+
+        bandMissing = new boolean[NUM_BANDS];
+        bandReceived = new AtomicIntegerArray(NUM_BANDS);
+        int columns = mandelbrotGrid.columns();
+        int hits = 0;
+        for (int b = 0; b < NUM_BANDS; b++) {
+            int first = b * CACHE_ROWS;
+            int rows = bandRows(b);
+            long restoredPoints = 0;
+            for (int i = first; restored != null && i < first + rows; i++) {
+                restoredPoints += restored.count(i);
+            }
+            if (restoredPoints == (long) rows * columns) {
+                cacheBand(b);
+                continue;
+            }
+
+            int[] counts = cache.get(bandKey(b), rows * columns);
+            if (counts == null) {
+                bandMissing[b] = restoredPoints == 0;
+                continue;
+            }
+            for (int i = 0; i < rows; i++) {
+                mandelbrotGrid.setRow(first + i, counts, i * columns);
+                rowMissing[first + i] = false;
+            }
+            hits++;
+        }
+        System.out.printf("%d of %d bands cached\n", hits, NUM_BANDS);
     }
 
     /**
-     * Write out the results of the calculation to a ".dat" file.
+     * Build the tasks covering the rows still to be computed: the tiles
+     * overlapping them for the tiles queue, or else a task for each run of them
+     * within a band.
+     */
+    private List<Tasks> missingTasks() {
+        List<Tasks> tasks = new ArrayList<>();
+        if (QUEUE.equals("tiles") && !DEEP) {
+            for (MandelbrotTileTask t : MandelbrotTileTask.makeTasks(MAX_ITERATIONS, NUM_REAL_POINTS,
+                    NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS,
+                    precision, TILE_SIZE)) {
+                for (int i = t.rowIndex; i < t.rowIndex + t.rowCount; i++) {
+                    if (rowMissing[i]) {
+                        tasks.add(t);
+                        break;
+                    }
+                }
+            }
+            return tasks;
+        }
+
+        for (int b = 0; b < NUM_BANDS; b++) {
+            int end = b * CACHE_ROWS + bandRows(b);
+            for (int i = b * CACHE_ROWS; i < end; i++) {
+                if (!rowMissing[i]) {
+                    continue;
+                }
+                int first = i;
+                while (i < end && rowMissing[i]) {
+                    i++;
+                }
+                tasks.add(DEEP
+                        ? new MandelbrotDeepTask(first, i - first, MAX_ITERATIONS, NUM_REAL_POINTS,
+                                NUM_IMAGINARY_POINTS, REAL_SPAN, IMAGINARY_SPAN, referenceOrbit)
+                        : new MandelbrotTask(first, i - first, MAX_ITERATIONS, NUM_REAL_POINTS,
+                                NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z,
+                                SHORTCUTS, precision));
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Get the number of rows in a band.
+     */
+    private static int bandRows(int band) {
+        return Math.min(CACHE_ROWS, NUM_REAL_POINTS - band * CACHE_ROWS);
+    }
+
+    /**
+     * Get the key a band is cached under.
+     */
+    private String bandKey(int band) {
+        return jobKey() + " rows=" + band * CACHE_ROWS + "+" + bandRows(band);
+    }
+
+    /**
+     * Get a key made of everything the counts depend on. The shortcuts are left
+     * out as they do not change the counts, and so is the precision when double.
+     */
+    private String jobKey() {
+        String view = DEEP
+                ? "deep centre=" + CENTRE_REAL.toPlainString() + "," + CENTRE_IMAGINARY.toPlainString() + " span="
+                        + Double.doubleToLongBits(REAL_SPAN) + "/" + NUM_REAL_POINTS + ","
+                        + Double.doubleToLongBits(IMAGINARY_SPAN) + "/" + NUM_IMAGINARY_POINTS
+                : "real=" + Double.doubleToLongBits(REAL_MIN_Z) + ":" + Double.doubleToLongBits(REAL_MAX_Z) + "/"
+                        + NUM_REAL_POINTS + " imaginary=" + Double.doubleToLongBits(IMAGINARY_MIN_Z) + ":"
+                        + Double.doubleToLongBits(IMAGINARY_MAX_Z) + "/" + NUM_IMAGINARY_POINTS;
+        String arithmetic = precision == KernelPrecision.DOUBLE ? ""
+                : " precision=" + KernelPrecision.name(precision);
+        return "mandelbrot v" + MandelbrotTask.KERNEL_VERSION + " iterations=" + MAX_ITERATIONS + " " + view
+                + arithmetic;
+    }
+
+    /**
+     * Count the points received for the missing bands overlapping the given rows,
+     * caching each band once all of its points have arrived.
+     */
+    private void cacheRows(int rowIndex, int rowCount, int rowLength) {
+        int columns = mandelbrotGrid.columns();
+        for (int i = rowIndex; i < rowIndex + rowCount; i++) {
+            int b = i / CACHE_ROWS;
+            if (bandMissing[b] && bandReceived.addAndGet(b, rowLength) == bandRows(b) * columns) {
+                cacheBand(b);
+            }
+        }
+    }
+
+    /**
+     * Cache a band of the grid.
+     */
+    private void cacheBand(int band) {
+        int columns = mandelbrotGrid.columns();
+        int[] counts = new int[bandRows(band) * columns];
+        int[] row = new int[columns];
+        for (int r = 0; r < bandRows(band); r++) {
+            mandelbrotGrid.getRow(band * CACHE_ROWS + r, row);
+            System.arraycopy(row, 0, counts, r * columns, columns);
+        }
+        cache.put(bandKey(band), counts);
+    }
+
+    /**
+     * Send tasks in the binary protocol unless serialized objects were asked for.
+     * Serialized deep zoom tasks each carry the reference orbit, which the binary
+     * protocol sends once per connection.
+     */
+    @Override
+    protected Tasks.Codec newCodec() {
+        if (PROTOCOL.equals("object")) {
+            return null;
+        }
+
+        MandelbrotTask.MandelbrotCodec codec;
+        if (DEEP && sequence == null) {
+            codec = new MandelbrotDeepTask.DeepCodec(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_SPAN,
+                    IMAGINARY_SPAN, referenceOrbit);
+        } else {
+            codec = new MandelbrotTask.MandelbrotCodec(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS,
+                    REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS);
+            codec.setPrecision(precision);
+            codec.setSequence(sequence);
+        }
+        codec.setResultEncoding(RESULT_ENCODING);
+        codec.setReduction((MandelbrotSummary.Reduction) reduction);
+        if (mandelbrotGrid != null) {
+            codec.decodeInto(mandelbrotGrid);
+        }
+        return codec;
+    }
+
+    /**
+     * Write out the results of the calculation in the chosen format, to a file
+     * named after the format's extension, e.g. "mandelbrot.dat" for text. A mapped
+     * grid is already a binary format file, so only needs flushing. The journal is
+     * no longer needed once the results are written.
      */
     public void writeResults() {
         System.out.println("Writing Results...");
+        if (reduction != null) {
+            writeSummary(combineSummaries());
+            return;
+        }
+        if (sequence != null) {
+            finishFrames();
+            return;
+        }
 
         try {
-            final PrintWriter writer = new PrintWriter(FILENAME, ENCODING);
+            if (!(GRID.equals("mapped") && FORMAT.equals("binary"))) {
+                ResultWriter writer = ResultWriter.forFormat(FORMAT, MAX_ITERATIONS, NUM_REAL_POINTS,
+                        NUM_IMAGINARY_POINTS, VIEW_REAL_MIN, VIEW_REAL_MAX, VIEW_IMAGINARY_MIN, VIEW_IMAGINARY_MAX);
+                writer.write(mandelbrotGrid, FILENAME + "." + writer.extension());
+            }
+            mandelbrotGrid.close();
+            if (cache != null) {
+                cache.close();
+            }
+            if (journal != null) {
+                journal.delete();
+            }
+            System.out.println("Results written successfully!");
+        } catch (final IOException e) {
+            e.printStackTrace();
+            if (journal != null) {
+                journal.close();
+            }
+        }
+    }
 
-            for (int i = 0; i < NUM_REAL_POINTS + 1; i++) {
-                for (int j = 0; j < NUM_IMAGINARY_POINTS + 1; j++) {
-                    zReal = (((double) i) / ((double) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
-                    zImaginary = (((double) j) / ((double) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
-                            + IMAGINARY_MIN_Z;
+    /**
+     * Combine the summaries collected by each talker pairwise, level by level.
+     */
+    private MandelbrotSummary combineSummaries() {
+        List<MandelbrotSummary> level = new ArrayList<>();
+        for (MandelbrotWorkerTalker talker : collectors) {
+            level.add(talker.summary);
+        }
+        if (level.isEmpty()) {
+            return new MandelbrotSummary((MandelbrotSummary.Reduction) reduction);
+        }
 
-                    writer.println(zReal + SPACE + zImaginary + SPACE + mandelbrotGrid[i][j]);
+        while (level.size() > 1) {
+            List<MandelbrotSummary> next = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += 2) {
+                if (i + 1 < level.size()) {
+                    level.get(i).merge(level.get(i + 1));
                 }
+                next.add(level.get(i));
             }
+            level = next;
+        }
+        return level.get(0);
+    }
 
-            writer.close();
-            System.out.println("Results written successfully!");
-        } catch (final FileNotFoundException e) {
+    /**
+     * Write out the parts of the summary asked for: the histogram to
+     * "mandelbrot.histogram" as lines of a count and its number of points, the
+     * area estimate to "mandelbrot.area", and the preview in the chosen format,
+     * e.g. "mandelbrot-preview.pgm".
+     */
+    private void writeSummary(MandelbrotSummary summary) {
+        MandelbrotSummary.Reduction parts = (MandelbrotSummary.Reduction) reduction;
+        try {
+            if (parts.has(MandelbrotSummary.HISTOGRAM)) {
+                try (PrintWriter out = new PrintWriter(FILENAME + ".histogram")) {
+                    long[] histogram = summary.histogram();
+                    for (int k = 0; k < histogram.length; k++) {
+                        out.println(k + " " + histogram[k]);
+                    }
+                }
+            }
+
+            if (parts.has(MandelbrotSummary.AREA)) {
+                double area = (double) summary.interior() / summary.points() * (VIEW_REAL_MAX - VIEW_REAL_MIN)
+                        * (VIEW_IMAGINARY_MAX - VIEW_IMAGINARY_MIN);
+                String estimate = String.format("area estimate %.6f from %d of %d points reaching %d iterations",
+                        area, summary.interior(), summary.points(), MAX_ITERATIONS);
+                System.out.println(estimate);
+                try (PrintWriter out = new PrintWriter(FILENAME + ".area")) {
+                    out.println(estimate);
+                }
+            }
+
+            if (parts.has(MandelbrotSummary.PREVIEW)) {
+                ResultGrid preview = summary.preview();
+                ResultWriter writer = ResultWriter.forFormat(FORMAT, MAX_ITERATIONS, preview.rows() - 1,
+                        preview.columns() - 1, VIEW_REAL_MIN, VIEW_REAL_MAX, VIEW_IMAGINARY_MIN, VIEW_IMAGINARY_MAX);
+                writer.write(preview, FILENAME + "-preview." + writer.extension());
+            }
+            System.out.printf("Summary of %d points written successfully!\n", summary.points());
+        } catch (final IOException e) {
             e.printStackTrace();
-        } catch (final UnsupportedEncodingException e) {
+        }
+    }
+
+    /**
+     * Copy the counts of a result into the grid of its frame, handing the frame
+     * to the writer once all of its rows have arrived.
+     */
+    private void addToFrame(MandelbrotTask.MandelbrotTaskResult result) {
+        Frame frame = frames.computeIfAbsent(result.frame, Frame::new);
+        for (int i = 0; i < result.rowCount; i++) {
+            frame.grid.setColumns(result.rowIndex + i, result.colIndex, result.rowResult, i * result.rowLength,
+                    result.rowLength);
+        }
+        if (frame.rows.addAndGet(result.rowCount) < NUM_REAL_POINTS) {
+            return;
+        }
+
+        /* never waits, as the frames handed out are bounded by SequenceQueue */
+        frames.remove(frame.number);
+        frameWriter.execute(() -> writeFrame(frame));
+    }
+
+    /**
+     * Write a complete frame, then keep its grid for a later frame.
+     */
+    private void writeFrame(Frame frame) {
+        double[] view = sequence.view(frame.number);
+        try {
+            ResultWriter writer = ResultWriter.forFormat(FORMAT, MAX_ITERATIONS, NUM_REAL_POINTS,
+                    NUM_IMAGINARY_POINTS, view[0], view[1], view[2], view[3]);
+            writer.write(frame.grid, String.format("%s-%05d.%s", FILENAME, frame.number, writer.extension()));
+            framesWritten.incrementAndGet();
+            System.out.printf("frame %d written\n", frame.number);
+        } catch (IOException e) {
+            System.err.println("error writing frame " + frame.number + ":\n\t" + e);
+        }
+        spareGrids.add(frame.grid);
+        framesDone.incrementAndGet();
+        tracker.queued();
+    }
+
+    /**
+     * Wait for every frame to be written.
+     */
+    private void finishFrames() {
+        frameWriter.shutdown();
+        try {
+            frameWriter.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        for (int number : frames.keySet()) {
+            System.err.println("frame " + number + " is incomplete");
+        }
+        System.out.printf("%d of %d frames written\n", framesWritten.get(), sequence.frames());
     }
 
     /**
-     * Create an instance of a thread containing a MandelbrotWorkerTalker.
+     * Create an instance of a MandelbrotWorkerTalker.
      */
     @Override
-    protected Thread newWorkerTalker(SynchTaskQueue<? extends Tasks> taskQueue, int workerID, Socket socket) {
-        return new Thread(new MandelbrotWorkerTalker(taskQueue, workerID, socket));
+    protected WorkerTalker newTalker(SynchTaskQueue<? extends Tasks> taskQueue, int workerID, Socket socket) {
+        return new MandelbrotWorkerTalker(taskQueue, workerID, socket);
     }
 
     /**
@@ -110,6 +862,9 @@ public class MandelbrotManager extends Manager {
      */
     protected class MandelbrotWorkerTalker extends WorkerTalker {
 
+        /* Summaries collected by this talker, combined into one, or null */
+        private MandelbrotSummary summary;
+
         /**
          * Construct a new MandelbrotWorkerTalker.
          */
@@ -118,12 +873,109 @@ public class MandelbrotManager extends Manager {
         }
 
         /**
-         * Add the results of a task result to the array[][] of overall points.
+         * Add the results of a task result to the array[][] of overall points,
+         * unless the codec has already decoded them into it, or combine a summary
+         * into this talker's.
          */
         @Override
         public void addResults(Tasks.TaskResult taskResult) {
+            long start = System.nanoTime();
+            if (taskResult instanceof MandelbrotSummary) {
+                if (summary == null) {
+                    summary = (MandelbrotSummary) taskResult;
+                    collectors.add(this);
+                } else {
+                    summary.merge((MandelbrotSummary) taskResult);
+                }
+                computeNanos.add(taskResult.getComputeNanos());
+                collectNanos.add(System.nanoTime() - start);
+                return;
+            }
+
             MandelbrotTask.MandelbrotTaskResult MTaskResult = (MandelbrotTask.MandelbrotTaskResult) taskResult;
-            mandelbrotGrid[MTaskResult.rowIndex] = MTaskResult.rowResult;
+            if (sequence != null) {
+                addToFrame(MTaskResult);
+                computeNanos.add(taskResult.getComputeNanos());
+                collectNanos.add(System.nanoTime() - start);
+                return;
+            }
+            for (int i = 0; MTaskResult.rowResult != null && i < MTaskResult.rowCount; i++) {
+                mandelbrotGrid.setColumns(MTaskResult.rowIndex + i, MTaskResult.colIndex, MTaskResult.rowResult,
+                        i * MTaskResult.rowLength, MTaskResult.rowLength);
+            }
+            if (cache != null) {
+                cacheRows(MTaskResult.rowIndex, MTaskResult.rowCount, MTaskResult.rowLength);
+            }
+            if (journal != null) {
+                journal.append(MTaskResult.rowIndex, MTaskResult.rowCount, MTaskResult.colIndex,
+                        MTaskResult.rowLength);
+            }
+            computeNanos.add(taskResult.getComputeNanos());
+            collectNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * A frame of a sequence whose results are arriving.
+     */
+    private class Frame {
+        private final int number;
+        private final ResultGrid grid;
+        private final AtomicInteger rows = new AtomicInteger();
+
+        Frame(int number) {
+            this.number = number;
+            ResultGrid spare = spareGrids.poll();
+            this.grid = spare != null ? spare
+                    : new ResultGrid.HeapGrid(NUM_REAL_POINTS + 1, NUM_IMAGINARY_POINTS + 1);
+        }
+    }
+
+    /**
+     * Queue handing out the frames of the sequence in order, each in blocks of
+     * SEQUENCE_CHUNK rows. Tasks are only created when they are handed out. While
+     * FRAME_BUFFERS frames are held, it has nothing to hand out without being
+     * empty, as a queue fed during the job, until a frame is written.
+     */
+    private class SequenceQueue extends SynchTaskQueue<MandelbrotTask> {
+        private final int blocksPerFrame = (NUM_REAL_POINTS + SEQUENCE_CHUNK - 1) / SEQUENCE_CHUNK;
+        private final int size = blocksPerFrame * sequence.frames();
+        private final AtomicInteger next = new AtomicInteger();
+
+        @Override
+        public boolean isEmpty() {
+            return next.get() >= size;
+        }
+
+        @Override
+        public int remaining() {
+            return Math.max(0, size - next.get());
+        }
+
+        @Override
+        public Tasks get() {
+            int block;
+            do {
+                block = next.get();
+                if (block >= size) {
+                    synchronized (this) {
+                        notifyAll();
+                    }
+                    return null;
+                }
+                if (block / blocksPerFrame >= framesDone.get() + FRAME_BUFFERS) {
+                    return null;
+                }
+            } while (!next.compareAndSet(block, block + 1));
+
+            int frame = block / blocksPerFrame;
+            int first = (block % blocksPerFrame) * SEQUENCE_CHUNK;
+            double[] view = sequence.view(frame);
+            MandelbrotTask t = new MandelbrotTask(first, Math.min(SEQUENCE_CHUNK, NUM_REAL_POINTS - first),
+                    MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, view[0], view[1], view[2], view[3],
+                    SHORTCUTS, framePrecisions[frame]);
+            t.setFrame(frame);
+            return t;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,143 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * A sequence of frames along a path of keyframes, such as a zoom animation.
+ *
+ * Each keyframe is a view given by its centre and its width along the real
+ * axis, the height keeping the proportions of the default view. Frames are
+ * spread evenly over the path, the width changing geometrically between
+ * keyframes, so a zoom runs at a constant rate. The centre moves in step with
+ * the width rather than linearly, so that zooming towards a keyframe keeps its
+ * centre still on screen. Both manager and workers find the view of a frame from
+ * the sequence, so tasks only carry the frame's number and the arithmetic the
+ * manager chose for it.
+ */
+public class MandelbrotSequence implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Centre and width of each keyframe */
+    private final double[] centreReal;
+    private final double[] centreImaginary;
+    private final double[] span;
+
+    /* Number of frames along the path */
+    private final int frames;
+
+    /* Extents of the default view, whose proportions every frame keeps */
+    private final double realExtent;
+    private final double imaginaryExtent;
+
+    /**
+     * Construct a sequence.
+     *
+     * @param centreReal      the real part of the centre of each keyframe
+     * @param centreImaginary the imaginary part of the centre of each keyframe
+     * @param span            the width along the real axis of each keyframe
+     * @param frames          the number of frames along the path
+     * @param realExtent      the width of the default view
+     * @param imaginaryExtent the height of the default view
+     */
+    public MandelbrotSequence(double[] centreReal, double[] centreImaginary, double[] span, int frames,
+            double realExtent, double imaginaryExtent) {
+        this.centreReal = centreReal;
+        this.centreImaginary = centreImaginary;
+        this.span = span;
+        this.frames = frames;
+        this.realExtent = realExtent;
+        this.imaginaryExtent = imaginaryExtent;
+    }
+
+    /**
+     * Parse keyframes given as "centreReal,centreImaginary,span" separated by
+     * semicolons.
+     *
+     * @throws NumberFormatException if a keyframe is malformed
+     */
+    public static MandelbrotSequence parse(String keyframes, int frames, double realExtent,
+            double imaginaryExtent) {
+        String[] views = keyframes.split(";");
+        double[] centreReal = new double[views.length];
+        double[] centreImaginary = new double[views.length];
+        double[] span = new double[views.length];
+        for (int k = 0; k < views.length; k++) {
+            String[] parts = views[k].split(",");
+            if (parts.length != 3) {
+                throw new NumberFormatException("keyframe needs centreReal,centreImaginary,span: " + views[k]);
+            }
+            centreReal[k] = Double.parseDouble(parts[0].trim());
+            centreImaginary[k] = Double.parseDouble(parts[1].trim());
+            span[k] = Double.parseDouble(parts[2].trim());
+        }
+        return new MandelbrotSequence(centreReal, centreImaginary, span, Math.max(1, frames), realExtent,
+                imaginaryExtent);
+    }
+
+    /**
+     * Get the number of frames.
+     */
+    public int frames() {
+        return frames;
+    }
+
+    /**
+     * Get the view of a frame.
+     *
+     * @return the smallest and largest real parts, then the smallest and largest
+     *         imaginary parts.
+     */
+    public double[] view(int frame) {
+        int last = span.length - 1;
+        double position = frames > 1 ? (double) frame * last / (frames - 1) : 0;
+        int k = Math.min((int) position, Math.max(0, last - 1));
+        double f = Math.min(1, position - k);
+
+        double real = centreReal[k];
+        double imaginary = centreImaginary[k];
+        double width = span[k];
+        if (k < last && f > 0) {
+            width = span[k] * Math.pow(span[k + 1] / span[k], f);
+            double w = span[k] == span[k + 1] ? f : (span[k] - width) / (span[k] - span[k + 1]);
+            real += (centreReal[k + 1] - real) * w;
+            imaginary += (centreImaginary[k + 1] - imaginary) * w;
+        }
+
+        double height = width * imaginaryExtent / realExtent;
+        return new double[] { real - width / 2, real + width / 2, imaginary - height / 2, imaginary + height / 2 };
+    }
+
+    /**
+     * Write the sequence, for a codec.
+     */
+    void write(DataOutput out) throws IOException {
+        out.writeInt(span.length);
+        for (int k = 0; k < span.length; k++) {
+            out.writeDouble(centreReal[k]);
+            out.writeDouble(centreImaginary[k]);
+            out.writeDouble(span[k]);
+        }
+        out.writeInt(frames);
+        out.writeDouble(realExtent);
+        out.writeDouble(imaginaryExtent);
+    }
+
+    /**
+     * Read a sequence written by {@link #write}.
+     */
+    static MandelbrotSequence read(DataInput in) throws IOException {
+        int keyframes = in.readInt();
+        double[] centreReal = new double[keyframes];
+        double[] centreImaginary = new double[keyframes];
+        double[] span = new double[keyframes];
+        for (int k = 0; k < keyframes; k++) {
+            centreReal[k] = in.readDouble();
+            centreImaginary[k] = in.readDouble();
+            span[k] = in.readDouble();
+        }
+        return new MandelbrotSequence(centreReal, centreImaginary, span, in.readInt(), in.readDouble(),
+                in.readDouble());
+    }
+}
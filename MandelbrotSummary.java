@@ -0,0 +1,306 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Partial result of a job which only needs data derived from the counts rather
+ * than the grid itself: a histogram of the counts, the number of points reaching
+ * the iteration limit, from which the area of the set is estimated, and a
+ * preview averaging the counts of each square cell of {@code scale} points.
+ * Only the parts asked for are kept.
+ *
+ * The preview holds the sum of the counts of each cell, for the rows of cells
+ * the summarised tasks overlap, so a partial covering a few tasks stays small.
+ */
+public class MandelbrotSummary extends Tasks.Partial {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Parts a summary may keep */
+    static final int HISTOGRAM = 1;
+    static final int AREA = 2;
+    static final int PREVIEW = 4;
+
+    /* The parameters of the job */
+    private final Reduction reduction;
+
+    /* Number of points with each count, or null */
+    private final long[] histogram;
+
+    /* Number of points reaching the iteration limit, and of points summarised */
+    private long interior;
+    private long points;
+
+    /* Sums of the counts of each cell, by row of cells */
+    private final Map<Integer, long[]> preview = new TreeMap<>();
+
+    /**
+     * Construct an empty summary.
+     */
+    MandelbrotSummary(Reduction reduction) {
+        this.reduction = reduction;
+        this.histogram = reduction.has(HISTOGRAM) ? new long[reduction.maxIterations + 1] : null;
+    }
+
+    /**
+     * Add the counts of a block of rows or a tile.
+     */
+    void add(MandelbrotTask.MandelbrotTaskResult result) {
+        int maxIterations = reduction.maxIterations;
+        int scale = reduction.scale;
+
+        for (int i = 0; i < result.rowCount; i++) {
+            int offset = i * result.rowLength;
+            long[] cells = reduction.has(PREVIEW)
+                    ? preview.computeIfAbsent((result.rowIndex + i) / scale, r -> new long[reduction.cellColumns()])
+                    : null;
+            for (int j = 0; j < result.rowLength; j++) {
+                int count = result.rowResult[offset + j];
+                if (histogram != null) {
+                    histogram[count]++;
+                }
+                if (count == maxIterations) {
+                    interior++;
+                }
+                if (cells != null) {
+                    cells[(result.colIndex + j) / scale] += count;
+                }
+            }
+            points += result.rowLength;
+        }
+    }
+
+    @Override
+    protected void merge(Tasks.Partial other) {
+        MandelbrotSummary summary = (MandelbrotSummary) other;
+        if (histogram != null) {
+            for (int k = 0; k < histogram.length; k++) {
+                histogram[k] += summary.histogram[k];
+            }
+        }
+        interior += summary.interior;
+        points += summary.points;
+        for (Map.Entry<Integer, long[]> row : summary.preview.entrySet()) {
+            long[] cells = preview.get(row.getKey());
+            if (cells == null) {
+                preview.put(row.getKey(), row.getValue().clone());
+                continue;
+            }
+            for (int c = 0; c < cells.length; c++) {
+                cells[c] += row.getValue()[c];
+            }
+        }
+    }
+
+    /**
+     * Get the number of points with each count, or null if not kept.
+     */
+    long[] histogram() {
+        return histogram;
+    }
+
+    /**
+     * Get the number of points reaching the iteration limit.
+     */
+    long interior() {
+        return interior;
+    }
+
+    /**
+     * Get the number of points summarised.
+     */
+    long points() {
+        return points;
+    }
+
+    /**
+     * Get the preview as a grid holding the average count of each cell, with a
+     * row per row of cells.
+     */
+    ResultGrid preview() {
+        int scale = reduction.scale;
+        int rows = (reduction.numRealPoints + scale - 1) / scale;
+        int columns = reduction.cellColumns();
+        ResultGrid grid = new ResultGrid.HeapGrid(rows, columns);
+
+        for (Map.Entry<Integer, long[]> row : preview.entrySet()) {
+            int r = row.getKey();
+            int cellRows = Math.min(scale, reduction.numRealPoints - r * scale);
+            for (int c = 0; c < columns; c++) {
+                int cellColumns = Math.min(scale, reduction.numImaginaryPoints + 1 - c * scale);
+                grid.set(r, c, (int) Math.round((double) row.getValue()[c] / (cellRows * cellColumns)));
+            }
+        }
+        return grid;
+    }
+
+    /**
+     * Write the summary, for a codec. Only the non-zero entries of the histogram
+     * are written.
+     */
+    void write(DataOutput out) throws IOException {
+        writeTaskIDs(out);
+        out.writeLong(interior);
+        out.writeLong(points);
+
+        if (histogram != null) {
+            int used = 0;
+            for (long n : histogram) {
+                used += n == 0 ? 0 : 1;
+            }
+            out.writeInt(used);
+            for (int k = 0; k < histogram.length; k++) {
+                if (histogram[k] != 0) {
+                    out.writeInt(k);
+                    out.writeLong(histogram[k]);
+                }
+            }
+        }
+
+        out.writeInt(preview.size());
+        for (Map.Entry<Integer, long[]> row : preview.entrySet()) {
+            out.writeInt(row.getKey());
+            for (long sum : row.getValue()) {
+                out.writeLong(sum);
+            }
+        }
+    }
+
+    /**
+     * Read a summary written by {@link #write}.
+     */
+    static MandelbrotSummary read(DataInput in, Reduction reduction) throws IOException {
+        MandelbrotSummary summary = new MandelbrotSummary(reduction);
+        summary.readTaskIDs(in);
+        summary.interior = in.readLong();
+        summary.points = in.readLong();
+
+        if (summary.histogram != null) {
+            for (int used = in.readInt(); used > 0; used--) {
+                int k = in.readInt();
+                summary.histogram[k] = in.readLong();
+            }
+        }
+
+        for (int rows = in.readInt(); rows > 0; rows--) {
+            int r = in.readInt();
+            long[] cells = new long[reduction.cellColumns()];
+            for (int c = 0; c < cells.length; c++) {
+                cells[c] = in.readLong();
+            }
+            summary.preview.put(r, cells);
+        }
+        return summary;
+    }
+
+    /**
+     * Reduction of the results of MandelbrotTasks, MandelbrotTileTasks and
+     * MandelbrotDeepTasks to summaries.
+     */
+    public static class Reduction implements Tasks.Reduction {
+
+        private static final long serialVersionUID = 1L;
+
+        /* Parts kept, a combination of HISTOGRAM, AREA and PREVIEW */
+        private final int parts;
+        private final int maxIterations;
+        private final int numRealPoints;
+        private final int numImaginaryPoints;
+
+        /* Number of points along each side of a cell of the preview */
+        private final int scale;
+
+        /* Most tasks a worker combines before sending a summary */
+        private final int batch;
+
+        /**
+         * Construct a reduction for a job with the given parameters.
+         *
+         * @param parts a combination of HISTOGRAM, AREA and PREVIEW
+         * @param scale the number of points along each side of a cell of the
+         *              preview
+         * @param batch the most tasks a worker combines before sending a summary
+         */
+        public Reduction(int parts, int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, int scale,
+                int batch) {
+            this.parts = parts;
+            this.maxIterations = MAX_ITERATIONS;
+            this.numRealPoints = NUM_REAL_POINTS;
+            this.numImaginaryPoints = NUM_IMAGINARY_POINTS;
+            this.scale = scale;
+            this.batch = batch;
+        }
+
+        /**
+         * Get the parts named in a comma separated list of "histogram", "area" and
+         * "preview".
+         */
+        public static int parts(String names) {
+            int parts = 0;
+            for (String name : names.split(",")) {
+                switch (name.trim()) {
+                case "histogram":
+                    parts |= HISTOGRAM;
+                    break;
+                case "area":
+                    parts |= AREA;
+                    break;
+                case "preview":
+                    parts |= PREVIEW;
+                    break;
+                default:
+                    break;
+                }
+            }
+            return parts;
+        }
+
+        /**
+         * Check whether the given part is kept.
+         */
+        boolean has(int part) {
+            return (parts & part) != 0;
+        }
+
+        /**
+         * Get the number of columns of cells of the preview.
+         */
+        int cellColumns() {
+            return (numImaginaryPoints + 1 + scale - 1) / scale;
+        }
+
+        @Override
+        public Tasks.Partial map(Tasks.TaskResult result) {
+            MandelbrotSummary summary = new MandelbrotSummary(this);
+            summary.add((MandelbrotTask.MandelbrotTaskResult) result);
+            return summary;
+        }
+
+        @Override
+        public int batch() {
+            return batch;
+        }
+
+        /**
+         * Write the reduction, for a codec.
+         */
+        void write(DataOutput out) throws IOException {
+            out.writeInt(parts);
+            out.writeInt(maxIterations);
+            out.writeInt(numRealPoints);
+            out.writeInt(numImaginaryPoints);
+            out.writeInt(scale);
+            out.writeInt(batch);
+        }
+
+        /**
+         * Read a reduction written by {@link #write}.
+         */
+        static Reduction read(DataInput in) throws IOException {
+            return new Reduction(in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                    in.readInt());
+        }
+    }
+}
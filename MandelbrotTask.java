@@ -1,6 +1,16 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 /**
  * Class for creating specific MandelbrotTasks.
@@ -22,12 +32,30 @@ public class MandelbrotTask extends Tasks implements Serializable {
     /* Maximum number of iterations for each grid point */
     private final int MAX_ITERATIONS;
 
-    /* The value of the grid point */
-    private static int k;
+    /* Whether to use the escape-time shortcuts */
+    private final boolean SHORTCUTS;
 
-    /* The index of the row to calculate in this task */
+    /* The arithmetic of the kernel, a KernelPrecision */
+    private final byte PRECISION;
+
+    /* Number of points of a row iterated together */
+    static final int LANES = 4;
+
+    /* Version of the counts computed, to be raised whenever a change alters them */
+    static final int KERNEL_VERSION = 1;
+
+    /* Number of iterations before the first periodicity check */
+    private static final int FIRST_PERIOD_CHECK = 8;
+
+    /* The index of the first row to calculate in this task */
     private int rowIndex;
 
+    /* The number of consecutive rows to calculate in this task */
+    private int rowCount;
+
+    /* The frame of a sequence this task belongs to, 0 outside sequences */
+    private int frame;
+
     /**
      * 
      * @param rowIndex             the index of the row being calculated
@@ -42,7 +70,35 @@ public class MandelbrotTask extends Tasks implements Serializable {
      */
     public MandelbrotTask(int rowIndex, int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS,
             double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+        this(rowIndex, 1, MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, false);
+    }
+
+    /**
+     * Construct a task covering a block of consecutive rows.
+     * 
+     * @param rowIndex  the index of the first row being calculated
+     * @param rowCount  the number of rows being calculated
+     * @param SHORTCUTS whether to use the escape-time shortcuts
+     */
+    public MandelbrotTask(int rowIndex, int rowCount, int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z,
+            double IMAGINARY_MAX_Z, boolean SHORTCUTS) {
+        this(rowIndex, rowCount, MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, KernelPrecision.DOUBLE);
+    }
+
+    /**
+     * Construct a task covering a block of consecutive rows, computed in the
+     * given arithmetic. The shortcuts are only taken in double precision.
+     * 
+     * @param PRECISION the arithmetic of the kernel, a KernelPrecision
+     */
+    public MandelbrotTask(int rowIndex, int rowCount, int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z,
+            double IMAGINARY_MAX_Z, boolean SHORTCUTS, byte PRECISION) {
         this.rowIndex = rowIndex;
+        this.rowCount = rowCount;
         this.MAX_ITERATIONS = MAX_ITERATIONS;
         this.NUM_REAL_POINTS = NUM_REAL_POINTS;
         this.NUM_IMAGINARY_POINTS = NUM_IMAGINARY_POINTS;
@@ -50,6 +106,8 @@ public class MandelbrotTask extends Tasks implements Serializable {
         this.REAL_MAX_Z = REAL_MAX_Z;
         this.IMAGINARY_MIN_Z = IMAGINARY_MIN_Z;
         this.IMAGINARY_MAX_Z = IMAGINARY_MAX_Z;
+        this.SHORTCUTS = SHORTCUTS;
+        this.PRECISION = PRECISION;
     }
 
     /**
@@ -59,39 +117,243 @@ public class MandelbrotTask extends Tasks implements Serializable {
      */
     @Override
     public TaskResult execute() {
-        int[] rowResult = new int[NUM_IMAGINARY_POINTS + 1];
+        int rowLength = NUM_IMAGINARY_POINTS + 1;
+        int[] rowResult = RowPool.acquire(rowCount * rowLength);
 
-        double z0Real, z0Imaginary;
-        double zReal, zImaginary;
+        for (int i = 0; i < rowCount; i++) {
+            double z0Real = (((double) (rowIndex + i)) / ((double) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z)
+                    + REAL_MIN_Z;
+            if (PRECISION != KernelPrecision.DOUBLE) {
+                KernelPrecision.computeRow(PRECISION, rowIndex + i, MAX_ITERATIONS, NUM_REAL_POINTS,
+                        NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, rowResult,
+                        i * rowLength);
+            } else if (SHORTCUTS) {
+                computeRowWithShortcuts(z0Real, rowResult, i * rowLength);
+            } else {
+                computeRow(z0Real, rowResult, i * rowLength);
+            }
+        }
+        MandelbrotTaskResult result = new MandelbrotTaskResult(rowIndex, rowCount, rowLength, rowResult);
+        result.frame = frame;
+        return result;
+    }
 
-        for (int j = 0; j < NUM_IMAGINARY_POINTS + 1; j++) {
-            z0Real = (((double) rowIndex) / ((double) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
-            z0Imaginary = (((double) j) / ((double) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
-                    + IMAGINARY_MIN_Z;
+    /**
+     * Set the frame of a sequence this task belongs to, given to its result.
+     */
+    public void setFrame(int frame) {
+        this.frame = frame;
+    }
 
-            zReal = z0Real;
-            zImaginary = z0Imaginary;
+    /**
+     * Get the imaginary part of the j-th point of a row.
+     */
+    private double imaginaryPoint(int j) {
+        return (((double) j) / ((double) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
+                + IMAGINARY_MIN_Z;
+    }
 
-            k = 0;
+    /**
+     * Compute the counts of one row, LANES points at a time, finishing the
+     * remainder of the row one point at a time.
+     * 
+     * @param z0Real the real part shared by every point of the row
+     * @param counts the array to write the counts to
+     * @param offset the index in counts of the first point of the row
+     */
+    private void computeRow(double z0Real, int[] counts, int offset) {
+        int rowLength = NUM_IMAGINARY_POINTS + 1;
+        int j = 0;
 
-            while (k < MAX_ITERATIONS) {
-                double zSquaredReal = (Math.pow(zReal, 2)) - (Math.pow(zImaginary, 2)); // Re(z^2)
-                double zSquaredImaginary = (double) 2.0 * zReal * zImaginary; // Im (z^2)
+        for (; j + LANES <= rowLength; j += LANES) {
+            escapeTimes(z0Real, imaginaryPoint(j), imaginaryPoint(j + 1), imaginaryPoint(j + 2),
+                    imaginaryPoint(j + 3), MAX_ITERATIONS, counts, offset + j);
+        }
+        for (; j < rowLength; j++) {
+            counts[offset + j] = escapeTime(z0Real, imaginaryPoint(j), MAX_ITERATIONS);
+        }
+    }
 
-                double magnitudeZSquaredSquared = (Math.pow(zSquaredReal, 2)) + (Math.pow(zSquaredImaginary, 2)); // |
-                                                                                                                  // z^2|^2
-                if (magnitudeZSquaredSquared > 4) {
-                    break; // Equivalent to |z^2|>2
-                }
+    /**
+     * Compute the counts of one row using the escape-time shortcuts. When the
+     * imaginary axis is symmetric about zero, the upper half of the row is copied
+     * from the lower half wherever the mirrored point is exactly the conjugate, as
+     * conjugate points iterate to conjugate values and so share a count.
+     * 
+     * @param z0Real the real part shared by every point of the row
+     * @param counts the array to write the counts to
+     * @param offset the index in counts of the first point of the row
+     */
+    private void computeRowWithShortcuts(double z0Real, int[] counts, int offset) {
+        boolean symmetric = IMAGINARY_MIN_Z == -IMAGINARY_MAX_Z;
+        int half = symmetric ? NUM_IMAGINARY_POINTS / 2 : NUM_IMAGINARY_POINTS;
+
+        for (int j = 0; j <= half; j++) {
+            counts[offset + j] = escapeTimeWithShortcuts(z0Real, imaginaryPoint(j), MAX_ITERATIONS);
+        }
+        for (int j = half + 1; j < NUM_IMAGINARY_POINTS + 1; j++) {
+            int mirror = NUM_IMAGINARY_POINTS - j;
+            double z0Imaginary = imaginaryPoint(j);
+            if (imaginaryPoint(mirror) == -z0Imaginary) {
+                counts[offset + j] = counts[offset + mirror];
+            } else {
+                counts[offset + j] = escapeTimeWithShortcuts(z0Real, z0Imaginary, MAX_ITERATIONS);
+            }
+        }
+    }
+
+    /**
+     * Count the iterations of z = z^2 + z0 before |z^2|^2 exceeds 4, as
+     * {@link #escapeTime} does, while avoiding the iterations for points which
+     * never escape. Points in the main cardioid or the period-2 bulb are
+     * recognised analytically. For other points the orbit is compared with a
+     * saved value whose distance in iterations doubles each time it is renewed
+     * (Brent's cycle detection); an orbit which returns exactly to a saved value
+     * repeats forever, so it can never escape.
+     * 
+     * @return the count, or maxIterations if the point never escapes.
+     */
+    static int escapeTimeWithShortcuts(double z0Real, double z0Imaginary, int maxIterations) {
+        if (inMainCardioidOrBulb(z0Real, z0Imaginary)) {
+            return maxIterations;
+        }
+
+        double zReal = z0Real;
+        double zImaginary = z0Imaginary;
+        double savedReal = zReal;
+        double savedImaginary = zImaginary;
+        int period = FIRST_PERIOD_CHECK;
+        int nextCheck = FIRST_PERIOD_CHECK;
+        int k = 0;
+
+        while (k < maxIterations) {
+            double zSquaredReal = zReal * zReal - zImaginary * zImaginary; // Re(z^2)
+            double zSquaredImaginary = 2.0 * zReal * zImaginary; // Im (z^2)
+
+            if (zSquaredReal * zSquaredReal + zSquaredImaginary * zSquaredImaginary > 4) {
+                break; // Equivalent to |z^2|>2
+            }
+
+            zReal = zSquaredReal + z0Real; // update z to value at next iteration
+            zImaginary = zSquaredImaginary + z0Imaginary;
+
+            k++; // update iteration counter
 
-                zReal = zSquaredReal + z0Real; // update z to value at next iteration
-                zImaginary = zSquaredImaginary + z0Imaginary;
+            if (zReal == savedReal && zImaginary == savedImaginary) {
+                return maxIterations;
+            }
+            if (k == nextCheck) {
+                savedReal = zReal;
+                savedImaginary = zImaginary;
+                period *= 2;
+                nextCheck = k + period;
+            }
+        }
+        return k;
+    }
+
+    /**
+     * Check whether a point lies in the main cardioid or the period-2 bulb, where
+     * no orbit escapes.
+     */
+    static boolean inMainCardioidOrBulb(double x, double y) {
+        double ySquared = y * y;
+        double xShifted = x - 0.25;
+        double q = xShifted * xShifted + ySquared;
+        if (q * (q + xShifted) <= 0.25 * ySquared) {
+            return true;
+        }
+        double xBulb = x + 1.0;
+        return xBulb * xBulb + ySquared <= 0.0625;
+    }
 
-                k++; // update iteration counter
+    /**
+     * Count the iterations of z = z^2 + z0 before |z^2|^2 exceeds 4.
+     * 
+     * @return the count, or maxIterations if the point never escapes.
+     */
+    static int escapeTime(double z0Real, double z0Imaginary, int maxIterations) {
+        double zReal = z0Real;
+        double zImaginary = z0Imaginary;
+        int k = 0;
+
+        while (k < maxIterations) {
+            double zSquaredReal = zReal * zReal - zImaginary * zImaginary; // Re(z^2)
+            double zSquaredImaginary = 2.0 * zReal * zImaginary; // Im (z^2)
+
+            if (zSquaredReal * zSquaredReal + zSquaredImaginary * zSquaredImaginary > 4) {
+                break; // Equivalent to |z^2|>2
             }
-            rowResult[j] = k;
+
+            zReal = zSquaredReal + z0Real; // update z to value at next iteration
+            zImaginary = zSquaredImaginary + z0Imaginary;
+
+            k++; // update iteration counter
         }
-        return new MandelbrotTaskResult(rowIndex, rowResult);
+        return k;
+    }
+
+    /**
+     * Count the iterations of four points sharing a real part at once. Each lane
+     * performs exactly the arithmetic of {@link #escapeTime}, so the counts are
+     * identical. Lanes which have escaped keep iterating, masked out of the
+     * result, until every lane has escaped; the four independent chains of
+     * multiplications keep the floating point units busy where a single point
+     * would wait on the latency of each step.
+     */
+    static void escapeTimes(double z0Real, double z0Imaginary0, double z0Imaginary1, double z0Imaginary2,
+            double z0Imaginary3, int maxIterations, int[] counts, int offset) {
+        double zReal0 = z0Real, zReal1 = z0Real, zReal2 = z0Real, zReal3 = z0Real;
+        double zImaginary0 = z0Imaginary0, zImaginary1 = z0Imaginary1;
+        double zImaginary2 = z0Imaginary2, zImaginary3 = z0Imaginary3;
+        int k0 = maxIterations, k1 = maxIterations, k2 = maxIterations, k3 = maxIterations;
+        int active = LANES;
+
+        for (int k = 0; k < maxIterations; k++) {
+            double zSquaredReal0 = zReal0 * zReal0 - zImaginary0 * zImaginary0;
+            double zSquaredImaginary0 = 2.0 * zReal0 * zImaginary0;
+            double zSquaredReal1 = zReal1 * zReal1 - zImaginary1 * zImaginary1;
+            double zSquaredImaginary1 = 2.0 * zReal1 * zImaginary1;
+            double zSquaredReal2 = zReal2 * zReal2 - zImaginary2 * zImaginary2;
+            double zSquaredImaginary2 = 2.0 * zReal2 * zImaginary2;
+            double zSquaredReal3 = zReal3 * zReal3 - zImaginary3 * zImaginary3;
+            double zSquaredImaginary3 = 2.0 * zReal3 * zImaginary3;
+
+            /* record the first iteration at which each lane escapes */
+            if (k0 == maxIterations && zSquaredReal0 * zSquaredReal0 + zSquaredImaginary0 * zSquaredImaginary0 > 4) {
+                k0 = k;
+                active--;
+            }
+            if (k1 == maxIterations && zSquaredReal1 * zSquaredReal1 + zSquaredImaginary1 * zSquaredImaginary1 > 4) {
+                k1 = k;
+                active--;
+            }
+            if (k2 == maxIterations && zSquaredReal2 * zSquaredReal2 + zSquaredImaginary2 * zSquaredImaginary2 > 4) {
+                k2 = k;
+                active--;
+            }
+            if (k3 == maxIterations && zSquaredReal3 * zSquaredReal3 + zSquaredImaginary3 * zSquaredImaginary3 > 4) {
+                k3 = k;
+                active--;
+            }
+            if (active == 0) {
+                break;
+            }
+
+            zReal0 = zSquaredReal0 + z0Real;
+            zImaginary0 = zSquaredImaginary0 + z0Imaginary0;
+            zReal1 = zSquaredReal1 + z0Real;
+            zImaginary1 = zSquaredImaginary1 + z0Imaginary1;
+            zReal2 = zSquaredReal2 + z0Real;
+            zImaginary2 = zSquaredImaginary2 + z0Imaginary2;
+            zReal3 = zSquaredReal3 + z0Real;
+            zImaginary3 = zSquaredImaginary3 + z0Imaginary3;
+        }
+
+        counts[offset] = k0;
+        counts[offset + 1] = k1;
+        counts[offset + 2] = k2;
+        counts[offset + 3] = k3;
     }
 
     /**
@@ -99,31 +361,134 @@ public class MandelbrotTask extends Tasks implements Serializable {
      */
     public static List<MandelbrotTask> makeTasks(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS,
             double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+        return makeTasks(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, false);
+    }
+
+    /**
+     * Builds a queue of MandelbrotTasks, one per row.
+     */
+    public static List<MandelbrotTask> makeTasks(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS,
+            double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z,
+            boolean SHORTCUTS) {
+        return makeTasks(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, KernelPrecision.DOUBLE);
+    }
+
+    /**
+     * Builds a queue of MandelbrotTasks, one per row, computed in the given
+     * arithmetic.
+     */
+    public static List<MandelbrotTask> makeTasks(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS,
+            double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z,
+            boolean SHORTCUTS, byte PRECISION) {
         List<MandelbrotTask> taskQueue = new ArrayList<>(NUM_REAL_POINTS + 1);
         for (int i = 0; i < NUM_REAL_POINTS; i++) {
-            taskQueue.add(new MandelbrotTask(i, MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z,
-                    REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z));
+            taskQueue.add(new MandelbrotTask(i, 1, MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS,
+                    REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, PRECISION));
         }
         return taskQueue;
     }
 
+    /**
+     * Describes the rows of a job as a task space, so that tasks covering blocks
+     * of rows are only created as they are handed out.
+     */
+    public static Manager.TaskSpace<MandelbrotTask> taskSpace(int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z,
+            double IMAGINARY_MAX_Z, boolean SHORTCUTS) {
+        return taskSpace(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, KernelPrecision.DOUBLE);
+    }
+
+    /**
+     * Describes the rows of a job computed in the given arithmetic as a task
+     * space.
+     */
+    public static Manager.TaskSpace<MandelbrotTask> taskSpace(int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z,
+            double IMAGINARY_MAX_Z, boolean SHORTCUTS, byte PRECISION) {
+        return (first, count) -> new MandelbrotTask(first, count, MAX_ITERATIONS, NUM_REAL_POINTS,
+                NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS,
+                PRECISION);
+    }
+
+    /**
+     * Estimate the cost of computing each row from a coarse pass over every
+     * {@code step}-th row and column, in iterations. Rows between the sampled
+     * rows are interpolated. With SHORTCUTS, points skipped by the cardioid and
+     * bulb check count as one iteration.
+     * 
+     * @return the estimated cost of rows 0 to {@code NUM_REAL_POINTS - 1}.
+     */
+    public static double[] estimateRowCosts(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS,
+            double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z,
+            boolean SHORTCUTS, int step) {
+        step = Math.max(1, step);
+        int samples = (NUM_REAL_POINTS - 1) / step + 1;
+        double[] sampled = new double[samples];
+
+        for (int s = 0; s < samples; s++) {
+            double z0Real = (((double) (s * step)) / ((double) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z)
+                    + REAL_MIN_Z;
+            double iterations = 0;
+            for (int j = 0; j <= NUM_IMAGINARY_POINTS; j += step) {
+                double z0Imaginary = (((double) j) / ((double) NUM_IMAGINARY_POINTS))
+                        * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z) + IMAGINARY_MIN_Z;
+                if (SHORTCUTS && inMainCardioidOrBulb(z0Real, z0Imaginary)) {
+                    iterations += 1;
+                } else {
+                    iterations += escapeTime(z0Real, z0Imaginary, MAX_ITERATIONS);
+                }
+            }
+            sampled[s] = iterations * step;
+        }
+
+        double[] costs = new double[NUM_REAL_POINTS];
+        for (int i = 0; i < NUM_REAL_POINTS; i++) {
+            int s = i / step;
+            if (s + 1 < samples) {
+                double t = (double) (i - s * step) / step;
+                costs[i] = (1 - t) * sampled[s] + t * sampled[s + 1];
+            } else {
+                costs[i] = sampled[s];
+            }
+        }
+        return costs;
+    }
+
     /**
      * Provides information about the task as a string.
      */
     @Override
     public String toString() {
-        return "task with row index = " + rowIndex;
+        if (rowCount == 1) {
+            return "task with row index = " + rowIndex;
+        }
+        return "task with row indices = " + rowIndex + " to " + (rowIndex + rowCount - 1);
     }
 
     /**
-     * A class for storing the result of a MandelbrotTask.
+     * A class for storing the result of a MandelbrotTask or a
+     * MandelbrotTileTask. Each row may cover only part of a row of the grid,
+     * starting at {@code colIndex}.
      */
     public static class MandelbrotTaskResult extends TaskResult {
 
         private static final long serialVersionUID = 1L;
 
+        /*
+         * The counts of each row in turn; the buffer may be longer than needed.
+         * Null if the codec decoded the counts straight into the grid.
+         */
         public final int[] rowResult;
         public final int rowIndex;
+        public final int rowCount;
+        public final int colIndex;
+        public final int rowLength;
+
+        /* The frame of a sequence the counts belong to, 0 outside sequences */
+        int frame;
 
         /**
          * Constructs a new MandelbrotTaskResult.
@@ -132,8 +497,555 @@ public class MandelbrotTask extends Tasks implements Serializable {
          * @param result the result of the computation at the row given by the rowIndex
          */
         public MandelbrotTaskResult(int rowIndex, int[] result) {
+            this(rowIndex, 1, result.length, result);
+        }
+
+        /**
+         * Constructs a result for a block of consecutive rows.
+         * 
+         * @param rowIndex  the index of the first row which was computed
+         * @param rowCount  the number of rows computed
+         * @param rowLength the number of points in each row
+         * @param result    the counts of each row in turn
+         */
+        public MandelbrotTaskResult(int rowIndex, int rowCount, int rowLength, int[] result) {
+            this(rowIndex, rowCount, 0, rowLength, result);
+        }
+
+        /**
+         * Constructs a result for a tile of the grid.
+         * 
+         * @param rowIndex  the index of the first row which was computed
+         * @param rowCount  the number of rows computed
+         * @param colIndex  the index of the first point computed in each row
+         * @param rowLength the number of points computed in each row
+         * @param result    the counts of each row in turn
+         */
+        public MandelbrotTaskResult(int rowIndex, int rowCount, int colIndex, int rowLength, int[] result) {
             this.rowIndex = rowIndex;
+            this.rowCount = rowCount;
+            this.colIndex = colIndex;
+            this.rowLength = rowLength;
             this.rowResult = result;
         }
+
+        /**
+         * Return the row buffer to the pool.
+         */
+        @Override
+        public void release() {
+            RowPool.release(rowResult);
+        }
+    }
+
+    /**
+     * A bounded pool of row buffers, so that workers and the manager do not
+     * allocate a new buffer for every task.
+     */
+    static class RowPool {
+        private static final long MAX_POOLED_INTS = 1 << 22;
+        private static final Queue<int[]> rows = new ConcurrentLinkedQueue<>();
+        private static final AtomicLong pooledInts = new AtomicLong();
+
+        /**
+         * Get a buffer of at least the given length. Its contents are undefined.
+         */
+        static int[] acquire(int length) {
+            int[] row = rows.poll();
+            if (row == null) {
+                return new int[length];
+            }
+            pooledInts.addAndGet(-row.length);
+            return row.length >= length ? row : new int[length];
+        }
+
+        /**
+         * Give a buffer back to the pool.
+         */
+        static void release(int[] row) {
+            if (row == null) {
+                return;
+            }
+            if (pooledInts.addAndGet(row.length) <= MAX_POOLED_INTS) {
+                rows.offer(row);
+            } else {
+                pooledInts.addAndGet(-row.length);
+            }
+        }
+    }
+
+    /**
+     * Codec for MandelbrotTasks. The axes and iteration limit are sent once per
+     * connection, leaving only the block of rows in each task and the rows' counts
+     * in each result.
+     *
+     * The manager chooses how the counts of results are encoded on each
+     * connection and tells the worker with the job. Raw counts are 4 bytes each.
+     * Packed counts are varint tokens, each either the zigzagged difference from
+     * the previous count of the row, or a run of counts equal to the previous one,
+     * so the long stretches of MAX_ITERATIONS and the small steps between
+     * neighbours take a byte or two. Deflated counts are packed counts compressed
+     * by Deflater. On the manager, results may be decoded straight into the grid.
+     *
+     * A job may carry a MandelbrotSummary.Reduction, given to every task read, in
+     * which case every result is a MandelbrotSummary. A job may also carry a
+     * MandelbrotSequence, in which case every task is a block of rows of one of
+     * its frames, tasks carry the frame's number and arithmetic, and results the
+     * frame's number.
+     */
+    public static class MandelbrotCodec extends Codec {
+        private int maxIterations;
+        private int numRealPoints;
+        private int numImaginaryPoints;
+        private double realMinZ;
+        private double realMaxZ;
+        private double imaginaryMinZ;
+        private double imaginaryMaxZ;
+        private boolean shortcuts;
+        private byte precision = KernelPrecision.DOUBLE;
+
+        /* The reduction given to every task, or null */
+        private MandelbrotSummary.Reduction reduction;
+
+        /* The sequence whose frames the tasks belong to, or null */
+        private MandelbrotSequence sequence;
+
+        /* Kinds of task, sent ahead of each task */
+        private static final byte ROW_TASK = 0;
+        private static final byte TILE_TASK = 1;
+
+        /* Encodings of the counts of results */
+        public static final byte RAW_RESULTS = 0;
+        public static final byte PACKED_RESULTS = 1;
+        public static final byte DEFLATED_RESULTS = 2;
+
+        /* The encoding of the counts of results on this connection */
+        byte resultEncoding = RAW_RESULTS;
+
+        /* The grid results are decoded into, or null to decode them into arrays */
+        private ResultGrid grid;
+
+        /* Largest encoding of the counts of a result, leaving room for the rest of its frame */
+        private static final int MAX_RESULT_BYTES = Integer.MAX_VALUE - 1024;
+
+        /* Scratch space for packing and unpacking rows of counts */
+        private byte[] scratch = new byte[0];
+        private byte[] compressed = new byte[0];
+        private Deflater deflater;
+        private Inflater inflater;
+
+        /**
+         * Construct a codec to be initialised by {@link #readJob}.
+         */
+        public MandelbrotCodec() {
+        }
+
+        /**
+         * Construct a codec for a job with the given parameters.
+         */
+        public MandelbrotCodec(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z,
+                double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z, boolean SHORTCUTS) {
+            this.maxIterations = MAX_ITERATIONS;
+            this.numRealPoints = NUM_REAL_POINTS;
+            this.numImaginaryPoints = NUM_IMAGINARY_POINTS;
+            this.realMinZ = REAL_MIN_Z;
+            this.realMaxZ = REAL_MAX_Z;
+            this.imaginaryMinZ = IMAGINARY_MIN_Z;
+            this.imaginaryMaxZ = IMAGINARY_MAX_Z;
+            this.shortcuts = SHORTCUTS;
+        }
+
+        /**
+         * Get the encoding of results with the given name, "raw", "packed" or
+         * "deflated".
+         */
+        public static byte resultEncoding(String name) {
+            switch (name) {
+            case "packed":
+                return PACKED_RESULTS;
+            case "deflated":
+                return DEFLATED_RESULTS;
+            default:
+                return RAW_RESULTS;
+            }
+        }
+
+        /**
+         * Choose the encoding of results, sent to the worker with the job.
+         */
+        public void setResultEncoding(byte encoding) {
+            this.resultEncoding = encoding;
+        }
+
+        /**
+         * Choose the arithmetic of the kernel, a KernelPrecision, sent to the worker
+         * with the job.
+         */
+        public void setPrecision(byte precision) {
+            this.precision = precision;
+        }
+
+        /**
+         * Choose the reduction sent to the worker with the job, so that it sends
+         * summaries instead of counts.
+         */
+        public void setReduction(MandelbrotSummary.Reduction reduction) {
+            this.reduction = reduction;
+        }
+
+        /**
+         * Choose the sequence sent to the worker with the job, whose frames the
+         * tasks belong to.
+         */
+        public void setSequence(MandelbrotSequence sequence) {
+            this.sequence = sequence;
+        }
+
+        /**
+         * Write the reduction of the job, if any.
+         */
+        protected void writeReduction(DataOutput out) throws IOException {
+            out.writeBoolean(reduction != null);
+            if (reduction != null) {
+                reduction.write(out);
+            }
+        }
+
+        /**
+         * Read the reduction written by {@link #writeReduction}.
+         */
+        protected void readReduction(DataInput in) throws IOException {
+            reduction = in.readBoolean() ? MandelbrotSummary.Reduction.read(in) : null;
+        }
+
+        /**
+         * Give a task read from the job the job's reduction.
+         */
+        protected Tasks reduced(Tasks task) {
+            task.setReduction(reduction);
+            return task;
+        }
+
+        /**
+         * Decode the counts of results straight into the grid, leaving the results
+         * without counts.
+         */
+        public void decodeInto(ResultGrid grid) {
+            this.grid = grid;
+        }
+
+        @Override
+        public void writeJob(DataOutput out) throws IOException {
+            out.writeByte(resultEncoding);
+            out.writeInt(maxIterations);
+            out.writeInt(numRealPoints);
+            out.writeInt(numImaginaryPoints);
+            out.writeDouble(realMinZ);
+            out.writeDouble(realMaxZ);
+            out.writeDouble(imaginaryMinZ);
+            out.writeDouble(imaginaryMaxZ);
+            out.writeBoolean(shortcuts);
+            out.writeByte(precision);
+            writeReduction(out);
+            out.writeBoolean(sequence != null);
+            if (sequence != null) {
+                sequence.write(out);
+            }
+        }
+
+        @Override
+        public void readJob(DataInput in) throws IOException {
+            resultEncoding = in.readByte();
+            maxIterations = in.readInt();
+            numRealPoints = in.readInt();
+            numImaginaryPoints = in.readInt();
+            realMinZ = in.readDouble();
+            realMaxZ = in.readDouble();
+            imaginaryMinZ = in.readDouble();
+            imaginaryMaxZ = in.readDouble();
+            shortcuts = in.readBoolean();
+            precision = in.readByte();
+            readReduction(in);
+            sequence = in.readBoolean() ? MandelbrotSequence.read(in) : null;
+        }
+
+        @Override
+        public void writeTask(DataOutput out, Tasks task) throws IOException {
+            if (task instanceof MandelbrotTileTask) {
+                MandelbrotTileTask tile = (MandelbrotTileTask) task;
+                out.writeByte(TILE_TASK);
+                out.writeInt(tile.rowIndex);
+                out.writeInt(tile.rowCount);
+                out.writeInt(tile.colIndex);
+                out.writeInt(tile.colCount);
+            } else {
+                MandelbrotTask rows = (MandelbrotTask) task;
+                out.writeByte(ROW_TASK);
+                out.writeInt(rows.rowIndex);
+                out.writeInt(rows.rowCount);
+                if (sequence != null) {
+                    out.writeInt(rows.frame);
+                    out.writeByte(rows.PRECISION);
+                }
+            }
+        }
+
+        @Override
+        public Tasks readTask(DataInput in) throws IOException {
+            if (in.readByte() == TILE_TASK) {
+                return reduced(new MandelbrotTileTask(in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                        maxIterations, numRealPoints, numImaginaryPoints, realMinZ, realMaxZ, imaginaryMinZ,
+                        imaginaryMaxZ, shortcuts, precision));
+            }
+            int rowIndex = in.readInt();
+            int rowCount = in.readInt();
+            if (sequence != null) {
+                int frame = in.readInt();
+                byte framePrecision = in.readByte();
+                double[] view = sequence.view(frame);
+                MandelbrotTask rows = new MandelbrotTask(rowIndex, rowCount, maxIterations, numRealPoints,
+                        numImaginaryPoints, view[0], view[1], view[2], view[3], shortcuts, framePrecision);
+                rows.setFrame(frame);
+                return reduced(rows);
+            }
+            return reduced(new MandelbrotTask(rowIndex, rowCount, maxIterations, numRealPoints, numImaginaryPoints,
+                    realMinZ, realMaxZ, imaginaryMinZ, imaginaryMaxZ, shortcuts, precision));
+        }
+
+        @Override
+        public void writeResult(DataOutput out, TaskResult result) throws IOException {
+            if (reduction != null) {
+                ((MandelbrotSummary) result).write(out);
+                return;
+            }
+
+            MandelbrotTaskResult row = (MandelbrotTaskResult) result;
+            int length = resultBytes((long) row.rowCount * row.rowLength, 1);
+            if (sequence != null) {
+                out.writeInt(row.frame);
+            }
+            out.writeInt(row.rowIndex);
+            out.writeInt(row.rowCount);
+            out.writeInt(row.colIndex);
+            out.writeInt(row.rowLength);
+
+            if (resultEncoding == RAW_RESULTS) {
+                int rawSize = resultBytes(length, 4);
+                byte[] bytes = scratch(rawSize);
+                for (int j = 0, b = 0; j < length; j++, b += 4) {
+                    int count = row.rowResult[j];
+                    bytes[b] = (byte) (count >>> 24);
+                    bytes[b + 1] = (byte) (count >>> 16);
+                    bytes[b + 2] = (byte) (count >>> 8);
+                    bytes[b + 3] = (byte) count;
+                }
+                out.write(bytes, 0, rawSize);
+                return;
+            }
+
+            int size = pack(row.rowResult, row.rowCount, row.rowLength);
+            out.writeInt(size);
+            if (resultEncoding == PACKED_RESULTS) {
+                out.write(scratch, 0, size);
+                return;
+            }
+
+            if (deflater == null) {
+                deflater = new Deflater(Deflater.BEST_SPEED);
+            }
+            /* Deflate's bound for stored blocks, so one pass normally suffices */
+            int bound = (int) Math.min(MAX_RESULT_BYTES, size + 5L * (size / 16383 + 1) + 16);
+            if (compressed.length < bound) {
+                compressed = new byte[bound];
+            }
+            deflater.reset();
+            deflater.setInput(scratch, 0, size);
+            deflater.finish();
+            int compressedSize = 0;
+            while (!deflater.finished()) {
+                if (compressedSize == compressed.length) {
+                    compressed = Arrays.copyOf(compressed,
+                            resultBytes(Math.max(64, compressed.length * 2L), 1));
+                }
+                int n = deflater.deflate(compressed, compressedSize, compressed.length - compressedSize);
+                if (n == 0) {
+                    throw new IOException("deflater stalled after " + compressedSize + " bytes");
+                }
+                compressedSize += n;
+            }
+            out.writeInt(compressedSize);
+            out.write(compressed, 0, compressedSize);
+        }
+
+        @Override
+        public TaskResult readResult(DataInput in) throws IOException {
+            if (reduction != null) {
+                return MandelbrotSummary.read(in, reduction);
+            }
+            if (sequence != null) {
+                int frame = in.readInt();
+                MandelbrotTaskResult result = readCounts(in);
+                result.frame = frame;
+                return result;
+            }
+            return readCounts(in);
+        }
+
+        /**
+         * Read the counts of a result, into the grid if there is one.
+         */
+        private MandelbrotTaskResult readCounts(DataInput in) throws IOException {
+            int rowIndex = in.readInt();
+            int rowCount = in.readInt();
+            int colIndex = in.readInt();
+            int rowLength = in.readInt();
+            int length = resultBytes((long) rowCount * rowLength, 1);
+            int[] rowResult = grid == null ? RowPool.acquire(length) : null;
+
+            if (resultEncoding == RAW_RESULTS) {
+                int rawSize = resultBytes(length, 4);
+                byte[] bytes = scratch(rawSize);
+                in.readFully(bytes, 0, rawSize);
+                for (int r = 0, b = 0; r < rowCount; r++) {
+                    for (int j = 0; j < rowLength; j++, b += 4) {
+                        int count = (bytes[b] << 24) | ((bytes[b + 1] & 0xff) << 16)
+                                | ((bytes[b + 2] & 0xff) << 8) | (bytes[b + 3] & 0xff);
+                        if (rowResult != null) {
+                            rowResult[r * rowLength + j] = count;
+                        } else {
+                            grid.set(rowIndex + r, colIndex + j, count);
+                        }
+                    }
+                }
+                return new MandelbrotTaskResult(rowIndex, rowCount, colIndex, rowLength, rowResult);
+            }
+
+            int size = resultBytes(in.readInt(), 1);
+            byte[] bytes = scratch(size);
+            if (resultEncoding == PACKED_RESULTS) {
+                in.readFully(bytes, 0, size);
+            } else {
+                int compressedSize = resultBytes(in.readInt(), 1);
+                if (compressed.length < compressedSize) {
+                    compressed = new byte[compressedSize];
+                }
+                in.readFully(compressed, 0, compressedSize);
+                if (inflater == null) {
+                    inflater = new Inflater();
+                }
+                inflater.reset();
+                inflater.setInput(compressed, 0, compressedSize);
+                try {
+                    if (inflater.inflate(bytes, 0, size) != size) {
+                        throw new IOException("truncated result");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException("corrupt result", e);
+                }
+            }
+            unpack(bytes, rowIndex, rowCount, colIndex, rowLength, rowResult);
+            return new MandelbrotTaskResult(rowIndex, rowCount, colIndex, rowLength, rowResult);
+        }
+
+        /**
+         * Pack the counts of each row into the scratch space.
+         *
+         * @return the number of bytes packed.
+         */
+        private int pack(int[] counts, int rowCount, int rowLength) throws IOException {
+            byte[] bytes = scratch(resultBytes((long) rowCount * rowLength, 5));
+            int b = 0;
+            for (int r = 0; r < rowCount; r++) {
+                int end = (r + 1) * rowLength;
+                int previous = 0;
+                for (int j = r * rowLength; j < end;) {
+                    int count = counts[j];
+                    long token;
+                    if (count == previous) {
+                        int run = 1;
+                        while (j + run < end && counts[j + run] == previous) {
+                            run++;
+                        }
+                        token = ((long) (run - 1) << 1) | 1;
+                        j += run;
+                    } else {
+                        int difference = count - previous;
+                        token = ((long) ((difference << 1) ^ (difference >> 31)) & 0xffffffffL) << 1;
+                        previous = count;
+                        j++;
+                    }
+
+                    /* varint, 7 bits at a time, lowest first */
+                    while ((token & ~0x7fL) != 0) {
+                        bytes[b++] = (byte) ((token & 0x7f) | 0x80);
+                        token >>>= 7;
+                    }
+                    bytes[b++] = (byte) token;
+                }
+            }
+            return b;
+        }
+
+        /**
+         * Unpack counts packed by {@link #pack} into the array given, or into the
+         * grid if there is none.
+         */
+        private void unpack(byte[] bytes, int rowIndex, int rowCount, int colIndex, int rowLength, int[] counts)
+                throws IOException {
+            int b = 0;
+            for (int r = 0; r < rowCount; r++) {
+                int previous = 0;
+                for (int j = 0; j < rowLength;) {
+                    long token = 0;
+                    for (int shift = 0;; shift += 7) {
+                        byte next = bytes[b++];
+                        token |= (long) (next & 0x7f) << shift;
+                        if (next >= 0) {
+                            break;
+                        }
+                    }
+
+                    int run = 1;
+                    if ((token & 1) != 0) {
+                        run = (int) (token >>> 1) + 1;
+                        if (j + run > rowLength) {
+                            throw new IOException("corrupt result");
+                        }
+                    } else {
+                        int zigzag = (int) (token >>> 1);
+                        previous += (zigzag >>> 1) ^ -(zigzag & 1);
+                    }
+
+                    if (counts != null) {
+                        Arrays.fill(counts, r * rowLength + j, r * rowLength + j + run, previous);
+                    } else {
+                        grid.fill(rowIndex + r, colIndex + j, run, previous);
+                    }
+                    j += run;
+                }
+            }
+        }
+
+        /**
+         * Get the number of bytes taken by the given number of items of the given
+         * size in a result.
+         *
+         * @throws IOException if they could not fit in one frame
+         */
+        private static int resultBytes(long items, int itemBytes) throws IOException {
+            long bytes = items * itemBytes;
+            if (items < 0 || bytes > MAX_RESULT_BYTES) {
+                throw new IOException("result of " + items + " items of " + itemBytes
+                        + " bytes does not fit in a frame, use smaller tasks");
+            }
+            return (int) bytes;
+        }
+
+        private byte[] scratch(int size) {
+            if (scratch.length < size) {
+                scratch = new byte[size];
+            }
+            return scratch;
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,230 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Task computing a rectangular tile of the grid by adaptive subdivision
+ * (the Mariani-Silver algorithm). The border of a rectangle is computed first,
+ * and if it lies in a region without holes where no point escapes, the interior
+ * is filled without iterating. Otherwise the rectangle is split into four,
+ * which share their borders, and each is treated the same way until it is
+ * small enough to compute point by point. Subdivision happens within the task,
+ * so a tile is always sent back whole.
+ *
+ * A border of one count, even one entirely in the set, may be crossed between
+ * its points by filaments too thin for the grid, enclosing points which escape.
+ * Only borders whose points are all in the main cardioid or the period-2 bulb,
+ * which together have no holes and contain no such filaments, are filled, so the
+ * counts are identical to those of MandelbrotTask.
+ */
+public class MandelbrotTileTask extends Tasks implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Number of points on real and imaginary axes */
+    private final int NUM_REAL_POINTS;
+    private final int NUM_IMAGINARY_POINTS;
+
+    /* Maximum and minimum values for each axis */
+    private final double REAL_MIN_Z;
+    private final double REAL_MAX_Z;
+    private final double IMAGINARY_MIN_Z;
+    private final double IMAGINARY_MAX_Z;
+
+    /* Maximum number of iterations for each grid point */
+    private final int MAX_ITERATIONS;
+
+    /* Whether to use the escape-time shortcuts */
+    private final boolean SHORTCUTS;
+
+    /* The arithmetic of the kernel, a KernelPrecision */
+    private final byte PRECISION;
+
+    /* Rectangles with no more than this many points across are computed point by point */
+    private static final int MIN_SUBDIVIDE = 4;
+
+    /* Marks a point which has not been computed yet */
+    private static final int UNKNOWN = -1;
+
+    /* The first row and column of the tile */
+    final int rowIndex;
+    final int colIndex;
+
+    /* The number of rows and columns of the tile */
+    final int rowCount;
+    final int colCount;
+
+    /**
+     * Construct a task covering a tile of the grid.
+     *
+     * @param rowIndex  the index of the first row of the tile
+     * @param rowCount  the number of rows of the tile
+     * @param colIndex  the index of the first point of each row in the tile
+     * @param colCount  the number of points of each row in the tile
+     * @param SHORTCUTS whether to use the escape-time shortcuts
+     */
+    public MandelbrotTileTask(int rowIndex, int rowCount, int colIndex, int colCount, int MAX_ITERATIONS,
+            int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z,
+            double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z, boolean SHORTCUTS) {
+        this(rowIndex, rowCount, colIndex, colCount, MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS,
+                REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, KernelPrecision.DOUBLE);
+    }
+
+    /**
+     * Construct a task covering a tile of the grid, computed in the given
+     * arithmetic. Outside double precision every point is computed, without
+     * shortcuts or filling.
+     *
+     * @param PRECISION the arithmetic of the kernel, a KernelPrecision
+     */
+    public MandelbrotTileTask(int rowIndex, int rowCount, int colIndex, int colCount, int MAX_ITERATIONS,
+            int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z,
+            double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z, boolean SHORTCUTS, byte PRECISION) {
+        this.rowIndex = rowIndex;
+        this.rowCount = rowCount;
+        this.colIndex = colIndex;
+        this.colCount = colCount;
+        this.MAX_ITERATIONS = MAX_ITERATIONS;
+        this.NUM_REAL_POINTS = NUM_REAL_POINTS;
+        this.NUM_IMAGINARY_POINTS = NUM_IMAGINARY_POINTS;
+        this.REAL_MIN_Z = REAL_MIN_Z;
+        this.REAL_MAX_Z = REAL_MAX_Z;
+        this.IMAGINARY_MIN_Z = IMAGINARY_MIN_Z;
+        this.IMAGINARY_MAX_Z = IMAGINARY_MAX_Z;
+        this.SHORTCUTS = SHORTCUTS;
+        this.PRECISION = PRECISION;
+    }
+
+    /**
+     * Execute the calculations for this tile.
+     *
+     * @return the counts of the tile, one row after another.
+     */
+    @Override
+    public TaskResult execute() {
+        int[] counts = MandelbrotTask.RowPool.acquire(rowCount * colCount);
+        Arrays.fill(counts, 0, rowCount * colCount, UNKNOWN);
+
+        subdivide(counts, 0, 0, rowCount - 1, colCount - 1);
+        return new MandelbrotTask.MandelbrotTaskResult(rowIndex, rowCount, colIndex, colCount, counts);
+    }
+
+    /**
+     * Compute the rectangle of the tile from (r0, c0) to (r1, c1) inclusive.
+     */
+    private void subdivide(int[] counts, int r0, int c0, int r1, int c1) {
+        if (r1 - r0 < MIN_SUBDIVIDE || c1 - c0 < MIN_SUBDIVIDE) {
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    count(counts, r, c);
+                }
+            }
+            return;
+        }
+
+        boolean filled = true;
+        for (int c = c0; c <= c1; c++) {
+            filled &= fills(counts, r0, c) & fills(counts, r1, c);
+        }
+        for (int r = r0 + 1; r < r1; r++) {
+            filled &= fills(counts, r, c0) & fills(counts, r, c1);
+        }
+
+        if (filled) {
+            for (int r = r0 + 1; r < r1; r++) {
+                Arrays.fill(counts, r * colCount + c0 + 1, r * colCount + c1, MAX_ITERATIONS);
+            }
+            return;
+        }
+
+        int rm = (r0 + r1) >>> 1;
+        int cm = (c0 + c1) >>> 1;
+        subdivide(counts, r0, c0, rm, cm);
+        subdivide(counts, r0, cm, rm, c1);
+        subdivide(counts, rm, c0, r1, cm);
+        subdivide(counts, rm, cm, r1, c1);
+    }
+
+    /**
+     * Compute a border point, checking whether it allows the rectangle to be
+     * filled.
+     */
+    private boolean fills(int[] counts, int r, int c) {
+        return count(counts, r, c) == MAX_ITERATIONS && PRECISION == KernelPrecision.DOUBLE
+                && MandelbrotTask.inMainCardioidOrBulb(realPoint(r), imaginaryPoint(c));
+    }
+
+    /**
+     * Get the count of a point of the tile, computing it if it is not yet known.
+     */
+    private int count(int[] counts, int r, int c) {
+        int index = r * colCount + c;
+        if (counts[index] == UNKNOWN && PRECISION != KernelPrecision.DOUBLE) {
+            counts[index] = KernelPrecision.escapeTime(PRECISION, rowIndex + r, colIndex + c, MAX_ITERATIONS,
+                    NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z);
+        } else if (counts[index] == UNKNOWN) {
+            counts[index] = SHORTCUTS
+                    ? MandelbrotTask.escapeTimeWithShortcuts(realPoint(r), imaginaryPoint(c), MAX_ITERATIONS)
+                    : MandelbrotTask.escapeTime(realPoint(r), imaginaryPoint(c), MAX_ITERATIONS);
+        }
+        return counts[index];
+    }
+
+    /**
+     * Get the real part of the points of the r-th row of the tile.
+     */
+    private double realPoint(int r) {
+        return (((double) (rowIndex + r)) / ((double) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
+    }
+
+    /**
+     * Get the imaginary part of the points of the c-th column of the tile.
+     */
+    private double imaginaryPoint(int c) {
+        return (((double) (colIndex + c)) / ((double) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
+                + IMAGINARY_MIN_Z;
+    }
+
+    /**
+     * Builds a queue of tiles covering every row computed by
+     * {@link MandelbrotTask#makeTasks}.
+     *
+     * @param tileSize the number of rows and of points per row in each tile
+     */
+    public static List<MandelbrotTileTask> makeTasks(int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z,
+            double IMAGINARY_MAX_Z, boolean SHORTCUTS, int tileSize) {
+        return makeTasks(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS, KernelPrecision.DOUBLE, tileSize);
+    }
+
+    /**
+     * Builds a queue of tiles computed in the given arithmetic.
+     *
+     * @param tileSize the number of rows and of points per row in each tile
+     */
+    public static List<MandelbrotTileTask> makeTasks(int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z,
+            double IMAGINARY_MAX_Z, boolean SHORTCUTS, byte PRECISION, int tileSize) {
+        List<MandelbrotTileTask> taskQueue = new ArrayList<>();
+        for (int i = 0; i < NUM_REAL_POINTS; i += tileSize) {
+            for (int j = 0; j < NUM_IMAGINARY_POINTS + 1; j += tileSize) {
+                taskQueue.add(new MandelbrotTileTask(i, Math.min(tileSize, NUM_REAL_POINTS - i), j,
+                        Math.min(tileSize, NUM_IMAGINARY_POINTS + 1 - j), MAX_ITERATIONS, NUM_REAL_POINTS,
+                        NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z, IMAGINARY_MAX_Z, SHORTCUTS,
+                        PRECISION));
+            }
+        }
+        return taskQueue;
+    }
+
+    /**
+     * Provides information about the task as a string.
+     */
+    @Override
+    public String toString() {
+        return "tile with row indices = " + rowIndex + " to " + (rowIndex + rowCount - 1) + ", columns = "
+                + colIndex + " to " + (colIndex + colCount - 1);
+    }
+}
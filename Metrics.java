@@ -0,0 +1,358 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters, latency histograms and gauges of a manager or worker process.
+ *
+ * Recording is lock-free so it can be done for every task: counters are
+ * LongAdders and histograms are arrays of atomic counts. Each set of Stats, one
+ * per worker connection on the manager, is registered as an MXBean under
+ * {@code Mandelbrot:type=Stats}, and the gauges under {@code
+ * Mandelbrot:type=Metrics}. Every {@code metrics.interval} seconds, and once more
+ * when the process stops, everything is written to {@code metrics-<name>.txt} in
+ * {@code metrics.dir}; an interval of 0 turns the file off.
+ */
+public class Metrics {
+
+    /* Seconds between writes of the metrics file, 0 for none */
+    private static final int INTERVAL = Integer.getInteger("metrics.interval", 5);
+
+    /* Directory the metrics file is written to */
+    private static final String DIRECTORY = System.getProperty("metrics.dir", ".");
+
+    private final String name;
+    private final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private ScheduledExecutorService dumper;
+
+    /**
+     * Construct the metrics of a process.
+     *
+     * @param name the name of the process, e.g. "manager" or "worker-3"
+     */
+    public Metrics(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Register the gauges over JMX and start writing the metrics file.
+     */
+    public void start() {
+        register("Mandelbrot:type=Metrics,name=" + name, new GaugesMXBean() {
+            @Override
+            public Map<String, Long> getGauges() {
+                return Metrics.this.getGauges();
+            }
+        });
+
+        if (INTERVAL > 0) {
+            dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "metrics-" + name);
+                t.setDaemon(true);
+                return t;
+            });
+            dumper.scheduleAtFixedRate(this::dump, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stop writing the metrics file, writing it one last time.
+     */
+    public void stop() {
+        if (dumper != null) {
+            dumper.shutdown();
+            dump();
+        }
+    }
+
+    /**
+     * Get the stats with the given name, creating them on first use.
+     */
+    public Stats stats(String statsName) {
+        return stats.computeIfAbsent(statsName, n -> {
+            Stats s = new Stats();
+            register("Mandelbrot:type=Stats,process=" + name + ",name=" + n, s);
+            return s;
+        });
+    }
+
+    /**
+     * Add a value sampled whenever the metrics are read.
+     */
+    public void gauge(String gaugeName, LongSupplier value) {
+        gauges.put(gaugeName, value);
+    }
+
+    /**
+     * Get the current value of every gauge.
+     */
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new TreeMap<>();
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            values.put(gauge.getKey(), gauge.getValue().getAsLong());
+        }
+        return values;
+    }
+
+    /**
+     * Write every metric to the metrics file, replacing it whole.
+     */
+    void dump() {
+        File file = new File(DIRECTORY, "metrics-" + name + ".txt");
+        File temporary = new File(DIRECTORY, "metrics-" + name + ".tmp");
+
+        try (PrintWriter writer = new PrintWriter(temporary)) {
+            writer.printf("# metrics of %s at %d ms\n", name, System.currentTimeMillis());
+            for (Map.Entry<String, Long> gauge : getGauges().entrySet()) {
+                writer.printf("gauge %s %d\n", gauge.getKey(), gauge.getValue());
+            }
+            for (Map.Entry<String, Stats> entry : new TreeMap<>(stats).entrySet()) {
+                entry.getValue().print(writer, entry.getKey());
+            }
+        } catch (IOException e) {
+            System.err.println("error writing metrics:\n\t" + e);
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            file.delete();
+            temporary.renameTo(file);
+        }
+    }
+
+    private static void register(String objectName, Object bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName mbeanName = new ObjectName(objectName);
+            if (!server.isRegistered(mbeanName)) {
+                server.registerMBean(bean, mbeanName);
+            }
+        } catch (JMException e) {
+            System.err.println("error registering metrics:\n\t" + e);
+        }
+    }
+
+    /**
+     * The gauges of a process, as seen over JMX.
+     */
+    public interface GaugesMXBean {
+
+        /**
+         * Get the current value of every gauge.
+         */
+        Map<String, Long> getGauges();
+    }
+
+    /**
+     * The stats of a connection or process, as seen over JMX. Times are in
+     * microseconds.
+     */
+    public interface StatsMXBean {
+        long getTasks();
+
+        double getTasksPerSecond();
+
+        long getBytesSent();
+
+        long getBytesReceived();
+
+        long getIdleMicros();
+
+        double getLatencyMeanMicros();
+
+        long getLatencyP50Micros();
+
+        long getLatencyP99Micros();
+
+        double getComputeMeanMicros();
+
+        long getComputeP99Micros();
+
+        double getTransferMeanMicros();
+
+        long getTransferP99Micros();
+    }
+
+    /**
+     * Counters and histograms of the tasks passing through a connection or
+     * process. The latency of a task runs from sending it to receiving its
+     * result on the manager, and from receiving it to sending its result on a
+     * worker. Its compute time is spent executing it, and its transfer time is
+     * the rest of the latency on the manager, or the time spent sending the
+     * result on a worker.
+     */
+    public static class Stats implements StatsMXBean {
+        public final LongAdder tasks = new LongAdder();
+        public final LongAdder bytesSent = new LongAdder();
+        public final LongAdder bytesReceived = new LongAdder();
+        public final LongAdder idleNanos = new LongAdder();
+        public final Histogram latency = new Histogram();
+        public final Histogram compute = new Histogram();
+        public final Histogram transfer = new Histogram();
+        private final long startNanos = System.nanoTime();
+
+        @Override
+        public long getTasks() {
+            return tasks.sum();
+        }
+
+        @Override
+        public double getTasksPerSecond() {
+            return tasks.sum() / ((System.nanoTime() - startNanos) / 1e9);
+        }
+
+        @Override
+        public long getBytesSent() {
+            return bytesSent.sum();
+        }
+
+        @Override
+        public long getBytesReceived() {
+            return bytesReceived.sum();
+        }
+
+        @Override
+        public long getIdleMicros() {
+            return idleNanos.sum() / 1000;
+        }
+
+        @Override
+        public double getLatencyMeanMicros() {
+            return latency.mean() / 1000;
+        }
+
+        @Override
+        public long getLatencyP50Micros() {
+            return latency.percentile(50) / 1000;
+        }
+
+        @Override
+        public long getLatencyP99Micros() {
+            return latency.percentile(99) / 1000;
+        }
+
+        @Override
+        public double getComputeMeanMicros() {
+            return compute.mean() / 1000;
+        }
+
+        @Override
+        public long getComputeP99Micros() {
+            return compute.percentile(99) / 1000;
+        }
+
+        @Override
+        public double getTransferMeanMicros() {
+            return transfer.mean() / 1000;
+        }
+
+        @Override
+        public long getTransferP99Micros() {
+            return transfer.percentile(99) / 1000;
+        }
+
+        private void print(PrintWriter writer, String prefix) {
+            writer.printf("%s tasks %d\n", prefix, getTasks());
+            writer.printf("%s tasksPerSecond %.1f\n", prefix, getTasksPerSecond());
+            writer.printf("%s bytesSent %d\n", prefix, getBytesSent());
+            writer.printf("%s bytesReceived %d\n", prefix, getBytesReceived());
+            writer.printf("%s idleMicros %d\n", prefix, getIdleMicros());
+            latency.print(writer, prefix + " latency");
+            compute.print(writer, prefix + " compute");
+            transfer.print(writer, prefix + " transfer");
+        }
+    }
+
+    /**
+     * Histogram of durations in nanoseconds with buckets whose width grows with
+     * the value, so that any value is recorded to within about 3% at a fixed
+     * cost. Values below 2^SUB_BITS have a bucket each; above that, each power
+     * of two is split into 2^SUB_BITS buckets.
+     */
+    public static class Histogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+        private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Record one duration.
+         */
+        public void record(long nanos) {
+            counts.incrementAndGet(bucket(Math.max(0, nanos)));
+            total.increment();
+            sum.add(nanos);
+        }
+
+        public long count() {
+            return total.sum();
+        }
+
+        public double mean() {
+            long n = total.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        /**
+         * Get the value below which the given percentage of durations lie, to the
+         * precision of the buckets.
+         */
+        public long percentile(double percent) {
+            long n = total.sum();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percent / 100 * n);
+            long seen = 0;
+            for (int b = 0; b < BUCKETS; b++) {
+                seen += counts.get(b);
+                if (seen >= Math.max(1, rank)) {
+                    return upperBound(b);
+                }
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long sub = bucket % SUB_BUCKETS;
+            long width = 1L << (exponent - SUB_BITS);
+            return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+        }
+
+        private void print(PrintWriter writer, String prefix) {
+            writer.printf("%s count=%d meanMicros=%.1f p50Micros=%d p90Micros=%d p99Micros=%d maxMicros=%d\n", prefix,
+                    count(), mean() / 1000, percentile(50) / 1000, percentile(90) / 1000, percentile(99) / 1000,
+                    percentile(100) / 1000);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Manager serving workers of its own on tasks it fetches from an upstream
+ * manager, so that managers can be arranged in a tree and no single process has
+ * to talk to hundreds of workers.
+ *
+ * Upstream, the relay connects like a Worker and asks for a credit of {@code
+ * relay.batch} tasks, enough to keep all of its own workers busy. Downstream, it
+ * hands those tasks out like any Manager, keeping the ids the upstream manager
+ * gave them, and sends each result upstream as it arrives. Results are flushed
+ * upstream in batches of up to {@code relay.resultBatch}, or every {@code
+ * relay.flushMs} milliseconds, so that the upstream manager sees one write for
+ * many results. Partials of a job with a reduction are combined into one
+ * before going upstream, so that the managers combine them as a tree.
+ * Downstream workers get the protocol, codec and job of the upstream
+ * connection.
+ *
+ * Lost downstream tasks are sent again by the relay. Overdue tasks are left for
+ * the upstream manager to copy, so the relay does not speculate. It serves a
+ * thread per connection, or {@code relay.selectorThreads} selector loops.
+ */
+public class RelayManager extends Manager {
+
+    private static final String usageMessage = "parameters:  upstreamHost upstreamPort portNum [window]";
+
+    /* Number of tasks to fetch from upstream ahead of the downstream workers */
+    private static final int BATCH = Integer.getInteger("relay.batch", 64);
+
+    /* Most results sent upstream before they are flushed */
+    private static final int RESULT_BATCH = Integer.getInteger("relay.resultBatch", 16);
+
+    /* Longest time a result waits to be flushed upstream */
+    private static final long FLUSH_MS = Long.getLong("relay.flushMs", 10);
+
+    /* Number of selector loops serving downstream workers, 0 for a thread each */
+    private static final int SELECTOR_THREADS = Integer.getInteger("relay.selectorThreads", 0);
+
+    private final String upstreamHost;
+    private final int upstreamPort;
+
+    /* Connection to the upstream manager, and results written to it but not flushed */
+    private TaskChannel upstream;
+    private int unflushed = 0;
+
+    /* Partials from downstream combined into one and not yet written upstream, or null */
+    private Tasks.Partial combined;
+    private IOException writeException;
+
+    /* Codec and job received from upstream, copied for each downstream connection */
+    private Tasks.Codec upstreamCodec;
+    private byte[] job;
+
+    /* Counters of the upstream connection */
+    private final Metrics.Stats upstreamStats = metrics.stats("upstream");
+
+    /**
+     * Construct a relay.
+     *
+     * @param port         the port to serve workers on
+     * @param window       the number of tasks in flight per worker connection
+     * @param upstreamHost the address of the upstream manager
+     * @param upstreamPort the port number of the upstream manager
+     */
+    public RelayManager(int port, int window, String upstreamHost, int upstreamPort) {
+        super(port, window, "relay");
+        this.upstreamHost = upstreamHost;
+        this.upstreamPort = upstreamPort;
+        this.speculate = false;
+        this.selectorThreads = SELECTOR_THREADS;
+    }
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) {
+        String upstreamHost = null;
+        int upstreamPort = 0;
+        int port = 0;
+        int window = 4;
+
+        try {
+            upstreamHost = args[0];
+            upstreamPort = Integer.parseInt(args[1]);
+            port = Integer.parseInt(args[2]);
+            if (args.length > 3) {
+                window = Integer.parseInt(args[3]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+            System.err.println(usageMessage);
+            System.exit(1);
+        }
+
+        new RelayManager(port, window, upstreamHost, upstreamPort).relay();
+    }
+
+    /**
+     * Connect to the upstream manager and serve its tasks to downstream workers
+     * until it has no more.
+     */
+    public void relay() {
+        try {
+            upstream = TaskChannel.openWorkerSide(new Socket(upstreamHost, upstreamPort));
+            upstream.countBytes(upstreamStats.bytesSent, upstreamStats.bytesReceived);
+            upstream.writeCredit(BATCH);
+            upstream.flush();
+            System.out.printf("relay %d connected to %s:%d, fetching %d tasks ahead\n", upstream.getWorkerID(),
+                    upstreamHost, upstreamPort, BATCH);
+
+            /* the job arrives with the first task, and downstream connections need it */
+            RelayQueue queue = new RelayQueue();
+            Tasks first = upstream.readTask();
+            if (first == null) {
+                queue.finish();
+            } else {
+                queue.add(first);
+
+                /* downstream workers hold a batch of tasks while combining partials */
+                if (first.getReduction() != null) {
+                    window += first.getReduction().batch();
+                }
+            }
+            upstreamCodec = upstream.getCodec();
+            if (upstreamCodec != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                upstreamCodec.writeJob(new DataOutputStream(bytes));
+                job = bytes.toByteArray();
+            }
+            taskQueue = queue;
+
+            Thread reader = new Thread(() -> readUpstream(queue), "relay-reader");
+            reader.start();
+            Thread flusher = new Thread(this::flushUpstream, "relay-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+
+            process();
+
+            /* every result is written before the upstream manager sends the shutdown */
+            synchronized (upstream) {
+                upstream.close();
+            }
+            waitForThreadToComplete(reader);
+            System.out.printf("relay done after %d tasks\n", upstreamStats.getTasks());
+        } catch (ClassNotFoundException e) {
+            System.err.println("relay error:\n\t" + e);
+        } catch (IOException e) {
+            System.err.println("relay error:\n\t" + e);
+        }
+    }
+
+    /**
+     * Read tasks from the upstream manager into the queue until it sends the
+     * shutdown or the connection fails.
+     */
+    private void readUpstream(RelayQueue queue) {
+        try {
+            Tasks t;
+            while ((t = upstream.readTask()) != null) {
+                queue.add(t);
+            }
+        } catch (ClassNotFoundException e) {
+            System.err.println("error reading from upstream:\n\t" + e);
+        } catch (IOException e) {
+            if (!queue.isEmpty() || tracker == null || tracker.outstanding() > 0) {
+                System.err.println("error reading from upstream:\n\t" + e);
+            }
+        }
+        queue.finish();
+    }
+
+    /**
+     * Flush results waiting to go upstream every FLUSH_MS.
+     */
+    private void flushUpstream() {
+        while (true) {
+            try {
+                Thread.sleep(FLUSH_MS);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+            synchronized (upstream) {
+                if (unflushed > 0 || combined != null) {
+                    flush();
+                }
+            }
+        }
+    }
+
+    /**
+     * Send a result upstream, flushing once a batch of them is waiting. Partials
+     * are combined, and sent once they cover a batch of tasks.
+     */
+    private void forward(Tasks.TaskResult result) {
+        synchronized (upstream) {
+            if (writeException != null) {
+                return;
+            }
+            if (result instanceof Tasks.Partial) {
+                if (combined == null) {
+                    combined = (Tasks.Partial) result;
+                } else {
+                    combined.combine((Tasks.Partial) result);
+                }
+                if (combined.getTaskIDs().length >= RESULT_BATCH) {
+                    flush();
+                }
+                return;
+            }
+
+            try {
+                upstream.writeResult(result);
+            } catch (IOException e) {
+                writeException = e;
+                System.err.println("error sending results upstream:\n\t" + e);
+                return;
+            }
+            upstreamStats.tasks.increment();
+            if (++unflushed >= RESULT_BATCH) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write any combined partial and flush the results written upstream, holding
+     * the upstream lock.
+     */
+    private void flush() {
+        try {
+            if (combined != null) {
+                upstream.writeResult(combined);
+                upstreamStats.tasks.add(combined.getTaskIDs().length);
+                combined = null;
+            }
+            upstream.flush();
+        } catch (IOException e) {
+            if (writeException == null) {
+                writeException = e;
+                System.err.println("error sending results upstream:\n\t" + e);
+            }
+        }
+        unflushed = 0;
+    }
+
+    /**
+     * Keep the ids given by the upstream manager, which are already unique.
+     */
+    @Override
+    void assignTaskID(Tasks t) {
+    }
+
+    /**
+     * Create a codec like the upstream one, holding the same job.
+     */
+    @Override
+    protected Tasks.Codec newCodec() {
+        if (upstreamCodec == null) {
+            return null;
+        }
+        try {
+            Tasks.Codec codec = upstreamCodec.getClass().getDeclaredConstructor().newInstance();
+            codec.readJob(new DataInputStream(new ByteArrayInputStream(job)));
+            return codec;
+        } catch (ReflectiveOperationException | IOException e) {
+            throw new IllegalStateException("cannot copy codec " + upstreamCodec.getClass().getName(), e);
+        }
+    }
+
+    @Override
+    protected WorkerTalker newTalker(SynchTaskQueue<? extends Tasks> taskQueue, int workerID, Socket s) {
+        return new RelayTalker(taskQueue, workerID, s);
+    }
+
+    /**
+     * Talker forwarding the results of a downstream worker upstream.
+     */
+    private class RelayTalker extends WorkerTalker {
+
+        RelayTalker(SynchTaskQueue<? extends Tasks> taskQueue, int workerID, Socket socket) {
+            super(taskQueue, workerID, socket);
+        }
+
+        @Override
+        protected void addResults(Tasks.TaskResult taskResult) {
+            forward(taskResult);
+        }
+    }
+
+    /**
+     * Queue of the tasks received from upstream and not yet handed out. It is
+     * only empty once the upstream manager has sent the shutdown, and has no task
+     * at the moment while waiting for the next one to arrive.
+     */
+    private class RelayQueue extends SynchTaskQueue<Tasks> {
+        private final Deque<Tasks> arrived = new ArrayDeque<>();
+        private boolean finished = false;
+
+        /**
+         * Add a task received from upstream.
+         */
+        void add(Tasks t) {
+            synchronized (this) {
+                arrived.add(t);
+            }
+            if (tracker != null) {
+                tracker.queued();
+            }
+        }
+
+        /**
+         * Record that no more tasks will arrive.
+         */
+        void finish() {
+            synchronized (this) {
+                finished = true;
+                notifyAll();
+            }
+            if (tracker != null) {
+                tracker.queued();
+            }
+        }
+
+        @Override
+        public synchronized boolean isEmpty() {
+            return finished && arrived.isEmpty();
+        }
+
+        @Override
+        public synchronized int remaining() {
+            return arrived.size();
+        }
+
+        @Override
+        public synchronized Tasks get() {
+            Tasks t = arrived.poll();
+            if (t == null && finished) {
+                notifyAll();
+            }
+            return t;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Storage for the grid of counts of a calculation, indexed by real then
+ * imaginary point. Rows may be written concurrently as long as no two threads
+ * write the same points.
+ */
+public abstract class ResultGrid {
+
+    protected final int rows;
+    protected final int columns;
+
+    protected ResultGrid(int rows, int columns) {
+        this.rows = rows;
+        this.columns = columns;
+    }
+
+    /**
+     * Get the number of rows, one per point of the real axis.
+     */
+    public int rows() {
+        return rows;
+    }
+
+    /**
+     * Get the number of points in each row.
+     */
+    public int columns() {
+        return columns;
+    }
+
+    /**
+     * Get the count of one point.
+     */
+    public abstract int get(int i, int j);
+
+    /**
+     * Set the count of one point.
+     */
+    public abstract void set(int i, int j, int count);
+
+    /**
+     * Set consecutive points of a row to the same count.
+     *
+     * @param i      the row to write
+     * @param j      the first point of the row to write
+     * @param length the number of points to set
+     * @param count  the count to set them to
+     */
+    public void fill(int i, int j, int length, int count) {
+        for (int k = j; k < j + length; k++) {
+            set(i, k, count);
+        }
+    }
+
+    /**
+     * Copy a row of counts into the grid.
+     *
+     * @param i      the row to write
+     * @param src    the array holding the counts
+     * @param offset the index in src of the first count of the row
+     */
+    public void setRow(int i, int[] src, int offset) {
+        setColumns(i, 0, src, offset, columns);
+    }
+
+    /**
+     * Copy counts into part of a row of the grid.
+     *
+     * @param i      the row to write
+     * @param j      the first point of the row to write
+     * @param src    the array holding the counts
+     * @param offset the index in src of the first count
+     * @param length the number of counts to copy
+     */
+    public abstract void setColumns(int i, int j, int[] src, int offset, int length);
+
+    /**
+     * Copy a row of counts out of the grid.
+     */
+    public abstract void getRow(int i, int[] dst);
+
+    /**
+     * Make sure everything written is stored, releasing any resources.
+     */
+    public void close() throws IOException {
+    }
+
+    /**
+     * A grid held on the heap.
+     */
+    public static class HeapGrid extends ResultGrid {
+        private final int[][] grid;
+
+        public HeapGrid(int rows, int columns) {
+            super(rows, columns);
+            grid = new int[rows][columns];
+        }
+
+        @Override
+        public int get(int i, int j) {
+            return grid[i][j];
+        }
+
+        @Override
+        public void set(int i, int j, int count) {
+            grid[i][j] = count;
+        }
+
+        @Override
+        public void fill(int i, int j, int length, int count) {
+            Arrays.fill(grid[i], j, j + length, count);
+        }
+
+        @Override
+        public void setColumns(int i, int j, int[] src, int offset, int length) {
+            System.arraycopy(src, offset, grid[i], j, length);
+        }
+
+        @Override
+        public void getRow(int i, int[] dst) {
+            System.arraycopy(grid[i], 0, dst, 0, columns);
+        }
+    }
+
+    /**
+     * A grid stored in a memory-mapped file in the binary result format, so that
+     * the heap needed does not grow with the grid and the file is complete as
+     * soon as the last row arrives. The file is mapped in segments of whole rows,
+     * each under 2GB.
+     */
+    public static class MappedGrid extends ResultGrid {
+        private final FileChannel channel;
+        private final MappedByteBuffer[] segments;
+        private final IntBuffer[] counts;
+        private final int rowsPerSegment;
+
+        /**
+         * Create the file, write its header and map it.
+         *
+         * @param filename the file to store the grid in
+         * @param header   the header of the binary result format
+         */
+        public MappedGrid(String filename, ByteBuffer header, int rows, int columns) throws IOException {
+            super(rows, columns);
+            channel = new RandomAccessFile(filename, "rw").getChannel();
+            channel.truncate(0);
+            channel.write(header, 0);
+
+            long rowBytes = 4L * columns;
+            rowsPerSegment = (int) Math.max(1, Integer.MAX_VALUE / rowBytes);
+            int numSegments = (rows + rowsPerSegment - 1) / rowsPerSegment;
+            segments = new MappedByteBuffer[numSegments];
+            counts = new IntBuffer[numSegments];
+
+            for (int s = 0; s < numSegments; s++) {
+                int segmentRows = Math.min(rowsPerSegment, rows - s * rowsPerSegment);
+                long position = ResultWriter.BINARY_HEADER_SIZE + s * rowsPerSegment * rowBytes;
+                segments[s] = channel.map(FileChannel.MapMode.READ_WRITE, position, segmentRows * rowBytes);
+                counts[s] = segments[s].order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+            }
+        }
+
+        @Override
+        public int get(int i, int j) {
+            return counts[i / rowsPerSegment].get((i % rowsPerSegment) * columns + j);
+        }
+
+        @Override
+        public void set(int i, int j, int count) {
+            counts[i / rowsPerSegment].put((i % rowsPerSegment) * columns + j, count);
+        }
+
+        @Override
+        public void setColumns(int i, int j, int[] src, int offset, int length) {
+            counts[i / rowsPerSegment].put((i % rowsPerSegment) * columns + j, src, offset, length);
+        }
+
+        @Override
+        public void getRow(int i, int[] dst) {
+            counts[i / rowsPerSegment].get((i % rowsPerSegment) * columns, dst, 0, columns);
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (MappedByteBuffer segment : segments) {
+                segment.force();
+            }
+            channel.close();
+        }
+    }
+}
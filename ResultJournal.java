@@ -0,0 +1,329 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the results collected by a manager, so that a render
+ * interrupted part way through resumes without computing again what it had
+ * already collected.
+ *
+ * The journal starts with a key describing the job; a journal of another job
+ * is discarded. Each record holds a rectangle of counts, the rows and columns
+ * it covers and a CRC32, so a record torn by a crash is detected and cut off.
+ * Records are appended by a background thread, which reads the counts back out
+ * of the grid, so collecting a result only queues the rectangle it covers. The
+ * journal is forced to disk every {@code syncMillis}, bounding what a crash can
+ * lose.
+ */
+public class ResultJournal {
+
+    /* Identifies a journal file */
+    private static final int MAGIC = 0x4d4a524e;
+
+    /* Marks the end of the records to write */
+    private static final int[] END = new int[0];
+
+    private final File file;
+    private final ResultGrid grid;
+    private final long syncMillis;
+    private final Restored restored;
+    private final BlockingQueue<int[]> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private FileOutputStream stream;
+    private DataOutputStream out;
+
+    /**
+     * Open a journal, restoring the records of an earlier run of the same job
+     * into the grid.
+     *
+     * @param file       the journal file, created if needed
+     * @param jobKey     describes everything the counts depend on
+     * @param grid       the grid results are collected in
+     * @param syncMillis the longest time records may wait to be forced to disk
+     */
+    public ResultJournal(File file, String jobKey, ResultGrid grid, long syncMillis) throws IOException {
+        this.file = file;
+        this.grid = grid;
+        this.syncMillis = syncMillis;
+        this.restored = new Restored(grid.rows(), grid.columns());
+
+        long end = file.exists() ? replay(jobKey) : -1;
+        if (end < 0) {
+            stream = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeUTF(jobKey);
+            out.flush();
+            stream.getChannel().force(false);
+        } else {
+            try (RandomAccessFile truncate = new RandomAccessFile(file, "rw")) {
+                truncate.setLength(end);
+            }
+            stream = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+        }
+
+        writer = new Thread(this::write, "result-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Get the points restored from the journal.
+     */
+    public Restored restored() {
+        return restored;
+    }
+
+    /**
+     * Journal a rectangle of counts once they are in the grid.
+     */
+    public void append(int rowIndex, int rowCount, int colIndex, int rowLength) {
+        pending.add(new int[] { rowIndex, rowCount, colIndex, rowLength });
+    }
+
+    /**
+     * Write every pending record, force the journal to disk and close it.
+     */
+    public void close() {
+        pending.add(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Close the journal and delete it, once the results it holds are safely
+     * written elsewhere.
+     */
+    public void delete() {
+        close();
+        if (!file.delete()) {
+            System.err.println("error deleting journal " + file);
+        }
+    }
+
+    /**
+     * Restore the records of the journal into the grid, stopping at the first
+     * one which is incomplete or corrupt.
+     *
+     * @return the length of the journal up to the end of the last good record,
+     *         or -1 if it belongs to another job.
+     */
+    private long replay(String jobKey) throws IOException {
+        int columns = grid.columns();
+        long position;
+        int records = 0;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            try {
+                if (in.readInt() != MAGIC || !in.readUTF().equals(jobKey)) {
+                    System.out.printf("journal %s belongs to another job, starting afresh\n", file);
+                    return -1;
+                }
+            } catch (EOFException e) {
+                return -1;
+            }
+            position = 4 + 2 + jobKey.getBytes("UTF-8").length;
+
+            byte[] bytes = new byte[0];
+            byte[] checksum = new byte[4];
+            int[] row = new int[columns];
+            CRC32 crc = new CRC32();
+            while (true) {
+                ByteBuffer header = ByteBuffer.allocate(16);
+                if (!readFully(in, header.array(), 16)) {
+                    break;
+                }
+                int rowIndex = header.getInt();
+                int rowCount = header.getInt();
+                int colIndex = header.getInt();
+                int rowLength = header.getInt();
+                if (rowIndex < 0 || rowCount < 1 || colIndex < 0 || rowLength < 1
+                        || rowIndex + rowCount > grid.rows() || colIndex + rowLength > columns) {
+                    break;
+                }
+
+                long recordLength = (long) rowCount * rowLength * 4;
+                if (recordLength > Integer.MAX_VALUE - 8) {
+                    break;
+                }
+                int length = (int) recordLength;
+                if (bytes.length < length) {
+                    bytes = new byte[length];
+                }
+                if (!readFully(in, bytes, length) || !readFully(in, checksum, 4)) {
+                    break;
+                }
+                crc.reset();
+                crc.update(header.array(), 0, 16);
+                crc.update(bytes, 0, length);
+                if (ByteBuffer.wrap(checksum).getInt() != (int) crc.getValue()) {
+                    break;
+                }
+
+                ByteBuffer counts = ByteBuffer.wrap(bytes, 0, length);
+                for (int i = 0; i < rowCount; i++) {
+                    counts.asIntBuffer().get(row, 0, rowLength);
+                    counts.position(counts.position() + rowLength * 4);
+                    grid.setColumns(rowIndex + i, colIndex, row, 0, rowLength);
+                    restored.set(rowIndex + i, colIndex, colIndex + rowLength);
+                }
+                position += 16 + length + 4;
+                records++;
+            }
+        }
+
+        System.out.printf("restored %d results, %d points, from journal %s\n", records, restored.points(), file);
+        return position;
+    }
+
+    /**
+     * Read as many bytes as asked for, unless the journal ends first.
+     */
+    private static boolean readFully(DataInputStream in, byte[] bytes, int length) throws IOException {
+        try {
+            in.readFully(bytes, 0, length);
+            return true;
+        } catch (EOFException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Append pending records, forcing them to disk every syncMillis.
+     */
+    private void write() {
+        int[] row = new int[grid.columns()];
+        ByteBuffer record = ByteBuffer.allocate(0);
+        CRC32 crc = new CRC32();
+        long lastSync = System.currentTimeMillis();
+        boolean dirty = false;
+
+        try {
+            while (true) {
+                int[] rectangle = pending.poll(syncMillis, TimeUnit.MILLISECONDS);
+                if (rectangle == END) {
+                    break;
+                }
+
+                if (rectangle != null) {
+                    int rowIndex = rectangle[0];
+                    int rowCount = rectangle[1];
+                    int colIndex = rectangle[2];
+                    int rowLength = rectangle[3];
+                    long recordSize = 16 + (long) rowCount * rowLength * 4;
+                    if (recordSize > Integer.MAX_VALUE - 8) {
+                        System.err.printf("result of %d rows of %d points is too large to journal\n", rowCount,
+                                rowLength);
+                        continue;
+                    }
+                    int size = (int) recordSize;
+                    if (record.capacity() < size) {
+                        record = ByteBuffer.allocate(size);
+                    }
+
+                    record.clear();
+                    record.putInt(rowIndex).putInt(rowCount).putInt(colIndex).putInt(rowLength);
+                    for (int i = 0; i < rowCount; i++) {
+                        grid.getRow(rowIndex + i, row);
+                        record.asIntBuffer().put(row, colIndex, rowLength);
+                        record.position(record.position() + rowLength * 4);
+                    }
+                    crc.reset();
+                    crc.update(record.array(), 0, size);
+                    out.write(record.array(), 0, size);
+                    out.writeInt((int) crc.getValue());
+                    dirty = true;
+                }
+
+                if (dirty && System.currentTimeMillis() - lastSync >= syncMillis) {
+                    out.flush();
+                    stream.getChannel().force(false);
+                    lastSync = System.currentTimeMillis();
+                    dirty = false;
+                }
+            }
+
+            out.flush();
+            stream.getChannel().force(false);
+            out.close();
+        } catch (IOException | InterruptedException e) {
+            System.err.println("error writing journal " + file + ":\n\t" + e);
+        }
+    }
+
+    /**
+     * The points restored from a journal, kept row by row so that no index
+     * outgrows a row however large the grid. A row only keeps the set of its
+     * restored columns until all of them are restored.
+     */
+    public static class Restored {
+        private final int columns;
+        private final int[] counts;
+        private final BitSet[] partial;
+
+        Restored(int rows, int columns) {
+            this.columns = columns;
+            this.counts = new int[rows];
+            this.partial = new BitSet[rows];
+        }
+
+        /**
+         * Record columns {@code from} to {@code to - 1} of a row as restored.
+         */
+        void set(int row, int from, int to) {
+            if (counts[row] == columns) {
+                return;
+            }
+            if (partial[row] == null) {
+                partial[row] = new BitSet(columns);
+            }
+            partial[row].set(from, to);
+            counts[row] = partial[row].cardinality();
+            if (counts[row] == columns) {
+                partial[row] = null;
+            }
+        }
+
+        /**
+         * Get the number of points of a row restored.
+         */
+        public int count(int row) {
+            return counts[row];
+        }
+
+        /**
+         * Check whether every point of a row was restored.
+         */
+        public boolean isComplete(int row) {
+            return counts[row] == columns;
+        }
+
+        /**
+         * Get the number of points restored.
+         */
+        public long points() {
+            long points = 0;
+            for (int count : counts) {
+                points += count;
+            }
+            return points;
+        }
+    }
+}
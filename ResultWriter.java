@@ -0,0 +1,432 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes the grid of counts of a Mandelbrot calculation to a file.
+ *
+ * The grid is split into stripes which are encoded in parallel and written in
+ * order, with only a few stripes held in memory at once. The formats are:
+ *
+ * text: a line of "re im count" for every point, as originally written.
+ * binary: a little-endian header followed by the counts as little-endian ints,
+ * one row of the real axis after another.
+ * pgm: a greyscale image, real axis across and imaginary axis up.
+ * png: the same image mapped through a colour palette.
+ */
+public abstract class ResultWriter {
+
+    /* Identifies the binary format, "MBRT" read as a little-endian int */
+    public static final int BINARY_MAGIC = 0x5452424d;
+    public static final int BINARY_VERSION = 1;
+
+    /* Size of the binary header, which keeps the counts aligned */
+    public static final int BINARY_HEADER_SIZE = 64;
+
+    /* Most grid rows or image lines in each stripe, and most bytes unless one line is larger */
+    private static final int STRIPE_SIZE = 64;
+    private static final int STRIPE_BYTES = 8 << 20;
+
+    /* Most stripes encoded ahead of the one being written, and most bytes they may hold */
+    private static final int STRIPES_IN_FLIGHT = 2 * Runtime.getRuntime().availableProcessors();
+    private static final long BYTES_IN_FLIGHT = 128L << 20;
+
+    private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n' };
+
+    protected final int numRealPoints;
+    protected final int numImaginaryPoints;
+    protected final double realMinZ;
+    protected final double realMaxZ;
+    protected final double imaginaryMinZ;
+    protected final double imaginaryMaxZ;
+    protected final int maxIterations;
+
+    /**
+     * Construct a writer for a grid over the given axes.
+     */
+    protected ResultWriter(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z,
+            double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+        this.maxIterations = MAX_ITERATIONS;
+        this.numRealPoints = NUM_REAL_POINTS;
+        this.numImaginaryPoints = NUM_IMAGINARY_POINTS;
+        this.realMinZ = REAL_MIN_Z;
+        this.realMaxZ = REAL_MAX_Z;
+        this.imaginaryMinZ = IMAGINARY_MIN_Z;
+        this.imaginaryMaxZ = IMAGINARY_MAX_Z;
+    }
+
+    /**
+     * Create the writer for a format.
+     *
+     * @param format one of "text", "binary", "pgm" or "png"
+     */
+    public static ResultWriter forFormat(String format, int MAX_ITERATIONS, int NUM_REAL_POINTS,
+            int NUM_IMAGINARY_POINTS, double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z,
+            double IMAGINARY_MAX_Z) {
+        switch (format) {
+        case "text":
+            return new TextWriter(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                    IMAGINARY_MIN_Z, IMAGINARY_MAX_Z);
+        case "binary":
+            return new BinaryWriter(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                    IMAGINARY_MIN_Z, IMAGINARY_MAX_Z);
+        case "pgm":
+            return new PgmWriter(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                    IMAGINARY_MIN_Z, IMAGINARY_MAX_Z);
+        case "png":
+            return new PngWriter(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z,
+                    IMAGINARY_MIN_Z, IMAGINARY_MAX_Z);
+        default:
+            throw new IllegalArgumentException("unknown result format: " + format);
+        }
+    }
+
+    /**
+     * Get the usual file name extension of the format.
+     */
+    public abstract String extension();
+
+    /**
+     * Write the grid to a file.
+     *
+     * @param grid     the counts
+     * @param filename the file to write
+     */
+    public void write(ResultGrid grid, String filename) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(filename), 1 << 16)) {
+            writeTo(grid, out);
+        }
+    }
+
+    /**
+     * Write the encoded grid to a stream.
+     */
+    protected abstract void writeTo(ResultGrid grid, OutputStream out) throws IOException;
+
+    /**
+     * Encodes one stripe of the output.
+     */
+    protected interface StripeEncoder<T> {
+
+        /**
+         * Encode lines {@code first} to {@code first + count - 1} of the output.
+         */
+        T encode(int first, int count);
+    }
+
+    /**
+     * Writes encoded stripes, in order.
+     */
+    protected interface StripeConsumer<T> {
+        void accept(T stripe) throws IOException;
+    }
+
+    /**
+     * Encode the lines of the output in parallel stripes, passing each stripe to
+     * the consumer in order as soon as it and those before it are ready. Stripes
+     * are sized, and their number in flight limited, so that the encoded stripes
+     * held at once stay within BYTES_IN_FLIGHT whatever the width of the grid.
+     *
+     * @param lines     the number of lines of output
+     * @param lineBytes about the number of bytes a line is encoded to
+     * @param encoder   encodes a stripe of lines
+     * @param consumer  writes the encoded stripes
+     */
+    protected static <T> void writeStripes(int lines, long lineBytes, StripeEncoder<T> encoder,
+            StripeConsumer<T> consumer) throws IOException {
+        int stripeLines = (int) Math.max(1, Math.min(STRIPE_SIZE, STRIPE_BYTES / Math.max(1, lineBytes)));
+        long stripeBytes = stripeLines * Math.max(1, lineBytes);
+        long inFlight = Math.max(1, Math.min(STRIPES_IN_FLIGHT, BYTES_IN_FLIGHT / stripeBytes));
+
+        Deque<CompletableFuture<T>> stripes = new ArrayDeque<>();
+        int next = 0;
+
+        while (next < lines || !stripes.isEmpty()) {
+            while (next < lines && stripes.size() < inFlight) {
+                int first = next;
+                int count = Math.min(stripeLines, lines - first);
+                stripes.add(CompletableFuture.supplyAsync(() -> encoder.encode(first, count)));
+                next += count;
+            }
+            consumer.accept(stripes.poll().join());
+        }
+    }
+
+    /**
+     * Encode the header of the binary format.
+     */
+    public static ByteBuffer binaryHeader(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS,
+            double REAL_MIN_Z, double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+        ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(BINARY_MAGIC);
+        header.putInt(BINARY_VERSION);
+        header.putInt(NUM_REAL_POINTS + 1);
+        header.putInt(NUM_IMAGINARY_POINTS + 1);
+        header.putDouble(REAL_MIN_Z);
+        header.putDouble(REAL_MAX_Z);
+        header.putDouble(IMAGINARY_MIN_Z);
+        header.putDouble(IMAGINARY_MAX_Z);
+        header.putInt(MAX_ITERATIONS);
+        header.rewind();
+        return header;
+    }
+
+    /**
+     * Map a count to a level from 0 to 255, points which never escape being 0.
+     */
+    protected int level(int count) {
+        if (count >= maxIterations) {
+            return 0;
+        }
+        return 1 + (int) ((long) count * 254 / maxIterations);
+    }
+
+    /**
+     * Encode a stripe of image lines, the top line holding the largest imaginary
+     * part, as levels with an optional filter byte before each line.
+     */
+    protected byte[] imageLines(ResultGrid grid, int first, int count, int lineHeader) {
+        int width = numRealPoints + 1;
+        byte[] bytes = new byte[count * (lineHeader + width)];
+        int b = 0;
+
+        for (int y = first; y < first + count; y++) {
+            int j = numImaginaryPoints - y;
+            b += lineHeader;
+            for (int i = 0; i < width; i++) {
+                bytes[b++] = (byte) level(grid.get(i, j));
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * The original text format, one "re im count" line per point.
+     */
+    static class TextWriter extends ResultWriter {
+        private static final String SPACE = " ";
+        private static final String NEWLINE = System.lineSeparator();
+
+        TextWriter(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z,
+                double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+            super(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z,
+                    IMAGINARY_MAX_Z);
+        }
+
+        @Override
+        public String extension() {
+            return "dat";
+        }
+
+        @Override
+        protected void writeTo(ResultGrid grid, OutputStream out) throws IOException {
+            /* the imaginary parts are the same for every row, so convert them once */
+            String[] imaginaryParts = new String[numImaginaryPoints + 1];
+            for (int j = 0; j < numImaginaryPoints + 1; j++) {
+                double zImaginary = (((double) j) / ((double) numImaginaryPoints)) * (imaginaryMaxZ - imaginaryMinZ)
+                        + imaginaryMinZ;
+                imaginaryParts[j] = SPACE + zImaginary + SPACE;
+            }
+
+            long lineBytes = (numImaginaryPoints + 1) * 32L;
+            writeStripes(numRealPoints + 1, lineBytes, (first, count) -> {
+                StringBuilder text = new StringBuilder((int) Math.min(STRIPE_BYTES, count * lineBytes));
+                int[] row = new int[numImaginaryPoints + 1];
+                for (int i = first; i < first + count; i++) {
+                    double zReal = (((double) i) / ((double) numRealPoints)) * (realMaxZ - realMinZ) + realMinZ;
+                    String realPart = Double.toString(zReal);
+                    grid.getRow(i, row);
+                    for (int j = 0; j < numImaginaryPoints + 1; j++) {
+                        text.append(realPart).append(imaginaryParts[j]).append(row[j]).append(NEWLINE);
+                    }
+                }
+                return text.toString().getBytes(StandardCharsets.UTF_8);
+            }, out::write);
+        }
+    }
+
+    /**
+     * A header followed by the raw counts, all little-endian.
+     *
+     * The header holds the magic number, the version, the number of rows and of
+     * points in each row, the four axis limits as doubles and the iteration
+     * limit, padded to BINARY_HEADER_SIZE bytes.
+     */
+    static class BinaryWriter extends ResultWriter {
+
+        BinaryWriter(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z,
+                double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+            super(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z,
+                    IMAGINARY_MAX_Z);
+        }
+
+        @Override
+        public String extension() {
+            return "bin";
+        }
+
+        @Override
+        protected void writeTo(ResultGrid grid, OutputStream out) throws IOException {
+            out.write(binaryHeader(maxIterations, numRealPoints, numImaginaryPoints, realMinZ, realMaxZ,
+                    imaginaryMinZ, imaginaryMaxZ).array());
+
+            writeStripes(numRealPoints + 1, (numImaginaryPoints + 1) * 4L, (first, count) -> {
+                ByteBuffer bytes = ByteBuffer.allocate(count * (numImaginaryPoints + 1) * 4)
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                int[] row = new int[numImaginaryPoints + 1];
+                for (int i = first; i < first + count; i++) {
+                    grid.getRow(i, row);
+                    bytes.asIntBuffer().put(row);
+                    bytes.position(bytes.position() + row.length * 4);
+                }
+                return bytes.array();
+            }, out::write);
+        }
+    }
+
+    /**
+     * A binary greyscale PGM image.
+     */
+    static class PgmWriter extends ResultWriter {
+
+        PgmWriter(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z,
+                double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+            super(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z,
+                    IMAGINARY_MAX_Z);
+        }
+
+        @Override
+        public String extension() {
+            return "pgm";
+        }
+
+        @Override
+        protected void writeTo(ResultGrid grid, OutputStream out) throws IOException {
+            String header = "P5\n" + (numRealPoints + 1) + " " + (numImaginaryPoints + 1) + "\n255\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            writeStripes(numImaginaryPoints + 1, numRealPoints + 1L,
+                    (first, count) -> imageLines(grid, first, count, 0), out::write);
+        }
+    }
+
+    /**
+     * An indexed colour PNG image. Each stripe is deflated separately and written
+     * as its own IDAT chunk; all but the last stripe end with a sync flush, so the
+     * chunks join into a single zlib stream.
+     */
+    static class PngWriter extends ResultWriter {
+
+        PngWriter(int MAX_ITERATIONS, int NUM_REAL_POINTS, int NUM_IMAGINARY_POINTS, double REAL_MIN_Z,
+                double REAL_MAX_Z, double IMAGINARY_MIN_Z, double IMAGINARY_MAX_Z) {
+            super(MAX_ITERATIONS, NUM_REAL_POINTS, NUM_IMAGINARY_POINTS, REAL_MIN_Z, REAL_MAX_Z, IMAGINARY_MIN_Z,
+                    IMAGINARY_MAX_Z);
+        }
+
+        @Override
+        public String extension() {
+            return "png";
+        }
+
+        @Override
+        protected void writeTo(ResultGrid grid, OutputStream out) throws IOException {
+            int width = numRealPoints + 1;
+            int height = numImaginaryPoints + 1;
+            DataOutputStream data = new DataOutputStream(out);
+            data.write(PNG_SIGNATURE);
+
+            ByteBuffer header = ByteBuffer.allocate(13);
+            header.putInt(width).putInt(height);
+            header.put((byte) 8).put((byte) 3).put((byte) 0).put((byte) 0).put((byte) 0);
+            writeChunk(data, "IHDR", header.array(), 13);
+            writeChunk(data, "PLTE", palette(), 256 * 3);
+
+            /* the zlib header; the deflated stripes follow in IDAT chunks */
+            writeChunk(data, "IDAT", new byte[] { 0x78, 0x01 }, 2);
+
+            /* the checksum covers the raw lines, so each stripe keeps them beside its chunk */
+            Adler32 adler = new Adler32();
+            writeStripes(height, width + 1L, (first, count) -> {
+                byte[] lines = imageLines(grid, first, count, 1);
+                return new byte[][] { lines, chunk("IDAT", deflate(lines, first + count == height)) };
+            }, stripe -> {
+                adler.update(stripe[0]);
+                data.write(stripe[1]);
+            });
+
+            byte[] checksum = ByteBuffer.allocate(4).putInt((int) adler.getValue()).array();
+            writeChunk(data, "IDAT", checksum, 4);
+            writeChunk(data, "IEND", new byte[0], 0);
+            data.flush();
+        }
+
+        /**
+         * Deflate a stripe without a zlib header, ending it with a sync flush so
+         * the next stripe may follow, or finishing the stream after the last.
+         */
+        private static byte[] deflate(byte[] lines, boolean last) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            deflater.setInput(lines);
+            if (last) {
+                deflater.finish();
+            }
+
+            byte[] buffer = new byte[Math.max(64, lines.length / 2)];
+            int length = 0;
+            while (true) {
+                length += deflater.deflate(buffer, length, buffer.length - length,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if (length < buffer.length && (last ? deflater.finished() : deflater.needsInput())) {
+                    break;
+                }
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+            }
+            deflater.end();
+            return Arrays.copyOf(buffer, length);
+        }
+
+        /**
+         * The palette: black for points which never escape, then dark blue
+         * through white to orange as the count grows.
+         */
+        private static byte[] palette() {
+            byte[] rgb = new byte[256 * 3];
+            for (int level = 1; level < 256; level++) {
+                double t = (level - 1) / 254.0;
+                rgb[level * 3] = (byte) (255 * Math.min(1.0, 2 * t));
+                rgb[level * 3 + 1] = (byte) (255 * Math.min(1.0, 1.5 * t + 0.1 * (1 - t)));
+                rgb[level * 3 + 2] = (byte) (255 * (t < 0.5 ? 0.3 + 1.4 * t : 2 * (1 - t)));
+            }
+            return rgb;
+        }
+
+        private static byte[] chunk(String type, byte[] body) {
+            ByteBuffer chunk = ByteBuffer.allocate(12 + body.length);
+            chunk.putInt(body.length);
+            chunk.put(type.getBytes(StandardCharsets.US_ASCII));
+            chunk.put(body);
+
+            CRC32 crc = new CRC32();
+            crc.update(chunk.array(), 4, 4 + body.length);
+            chunk.putInt((int) crc.getValue());
+            return chunk.array();
+        }
+
+        private static void writeChunk(DataOutputStream out, String type, byte[] body, int length) throws IOException {
+            out.write(chunk(type, Arrays.copyOf(body, length)));
+        }
+    }
+}
@@ -0,0 +1,384 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Measures the speedup and efficiency of the distributed render over Serial,
+ * by running whole jobs on loopback.
+ *
+ * For each number of workers N in {@code scaling.workers}, a MandelbrotManager
+ * and N Worker JVMs of {@code scaling.threads} threads each are launched, and
+ * Serial is run on the same grid, sequentially and in parallel on as many
+ * threads as the workers have between them. Strong scaling renders the grid of
+ * {@code scaling.size} (e.g. "3000x2000") for every N; weak scaling multiplies
+ * its real axis by N, keeping the points per worker the same. {@code
+ * scaling.mode} picks "strong", "weak" or "both".
+ *
+ * Each run is repeated {@code scaling.repeats} times in a fresh directory. Wall
+ * times run from launching the first JVM to the exit of the manager or Serial,
+ * so they include JVM startup. The phase times are those printed by the
+ * manager and Serial: creating the tasks, processing them, the compute time
+ * summed over every worker, the time spent storing results, and writing them.
+ * Every run is written as CSV to {@code scaling.output}, with the tasks run by
+ * each worker. Options in {@code scaling.managerOptions} are passed to the
+ * manager, e.g. "-Dmandelbrot.queue=tiles".
+ */
+public class ScalingBenchmark {
+
+    /* Parameters */
+    private static final String MODE = System.getProperty("scaling.mode", "both");
+    private static final String[] WORKERS = System.getProperty("scaling.workers", "1,2,4").split(",");
+    private static final int THREADS = Integer.getInteger("scaling.threads", 1);
+    private static final String SIZE = System.getProperty("scaling.size", "3000x2000");
+    private static final int ITERATIONS = Integer.getInteger("scaling.iterations", 200);
+    private static final int REPEATS = Integer.getInteger("scaling.repeats", 1);
+    private static final String MANAGER_OPTIONS = System.getProperty("scaling.managerOptions", "").trim();
+
+    /* Longest time a run may take, in seconds */
+    private static final long TIMEOUT = Long.getLong("scaling.timeout", 600);
+
+    /* File the results are written to */
+    private static final String OUTPUT = System.getProperty("scaling.output", "scaling.csv");
+
+    private static final String HEADER = "scaling,engine,workers,threads,realPoints,imaginaryPoints,repeat,"
+            + "wallMs,createMs,processMs,computeMs,collectMs,writeMs,speedup,efficiency,workerTasks";
+
+    /* Phase times printed by the manager and Serial */
+    private static final Pattern PHASE = Pattern.compile("(\\w+)=(\\d+)");
+
+    /* Task count printed by a worker */
+    private static final Pattern WORKER_DONE = Pattern.compile("worker \\d+ done after (\\d+) tasks");
+
+    private final List<String> rows = new ArrayList<>();
+
+    /**
+     * Main method.
+     */
+    public static void main(String[] args) {
+        new ScalingBenchmark().runAll();
+    }
+
+    private void runAll() {
+        String[] size = SIZE.split("x");
+        int realPoints = Integer.parseInt(size[0]);
+        int imaginaryPoints = Integer.parseInt(size[1]);
+
+        for (String scaling : new String[] { "strong", "weak" }) {
+            if (!MODE.equals("both") && !MODE.equals(scaling)) {
+                continue;
+            }
+            for (String w : WORKERS) {
+                int workers = Integer.parseInt(w.trim());
+                int real = scaling.equals("weak") ? realPoints * workers : realPoints;
+                for (int repeat = 0; repeat < REPEATS; repeat++) {
+                    runAt(scaling, workers, real, imaginaryPoints, repeat);
+                }
+            }
+        }
+        writeCsv();
+    }
+
+    /**
+     * Run Serial, parallel Serial and the distributed render on one grid.
+     */
+    private void runAt(String scaling, int workers, int real, int imaginary, int repeat) {
+        String prefix = scaling + "," + "%s," + workers + "," + THREADS + "," + real + "," + imaginary + "," + repeat;
+        int totalThreads = workers * THREADS;
+
+        Run serial = runSerial(real, imaginary, 0);
+        Run parallel = runSerial(real, imaginary, totalThreads);
+        Run distributed = runDistributed(real, imaginary, workers);
+
+        for (Run run : new Run[] { serial, parallel, distributed }) {
+            if (run == null) {
+                continue;
+            }
+            double speedup = serial == null ? 0 : (double) serial.wallMs / run.wallMs;
+            int threads = run == serial ? 1 : totalThreads;
+            String row = String.format(prefix, run.engine) + "," + run.wallMs + "," + run.phase("create") + ","
+                    + run.phase("process") + "," + run.phase("compute") + "," + run.phase("collect") + ","
+                    + run.phase("write") + "," + String.format("%.3f,%.3f", speedup, speedup / threads) + ","
+                    + String.join(";", run.workerTasks);
+            rows.add(row);
+            System.out.printf("%s %s workers=%d grid=%dx%d: %d ms, speedup %.2f\n", scaling, run.engine, workers,
+                    real, imaginary, run.wallMs, speedup);
+        }
+    }
+
+    /**
+     * Run Serial in parallel on the given number of threads, or sequentially for
+     * none.
+     */
+    private Run runSerial(int real, int imaginary, int threads) {
+        Run run = new Run(threads == 0 ? "serial" : "serial-parallel");
+        try {
+            File dir = Files.createTempDirectory("scaling").toFile();
+            List<String> options = gridOptions(real, imaginary);
+            if (threads > 0) {
+                options.add("-Dmandelbrot.parallel=true");
+                options.add("-Dmandelbrot.localThreads=" + threads);
+            }
+
+            long start = System.nanoTime();
+            Launched serial = Launched.start(javaCommand(options, "Serial"), dir);
+            boolean ok = serial.waitFor();
+            run.wallMs = (System.nanoTime() - start) / 1000000;
+            run.readPhases(serial.lines());
+            deleteAll(dir);
+            return ok ? run : null;
+        } catch (IOException e) {
+            System.err.println("error running Serial:\n\t" + e);
+            return null;
+        }
+    }
+
+    /**
+     * Run a manager and the given number of workers.
+     */
+    private Run runDistributed(int real, int imaginary, int workers) {
+        Run run = new Run("distributed");
+        List<Launched> launched = new ArrayList<>();
+        try {
+            File dir = Files.createTempDirectory("scaling").toFile();
+            int port = freePort();
+            List<String> options = gridOptions(real, imaginary);
+            if (!MANAGER_OPTIONS.isEmpty()) {
+                for (String option : MANAGER_OPTIONS.split("\\s+")) {
+                    options.add(option);
+                }
+            }
+
+            long start = System.nanoTime();
+            Launched manager = Launched.start(javaCommand(options, "MandelbrotManager", "" + port), dir);
+            launched.add(manager);
+            if (!manager.awaitLine("waiting for workers")) {
+                System.err.println("manager did not start:\n\t" + String.join("\n\t", manager.lines()));
+                manager.process.destroyForcibly();
+                return null;
+            }
+
+            List<Launched> workerProcesses = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                Launched worker = Launched.start(
+                        javaCommand(new ArrayList<>(), "Worker", "localhost", "" + port, "" + THREADS), dir);
+                workerProcesses.add(worker);
+                launched.add(worker);
+            }
+
+            boolean ok = manager.waitFor();
+            run.wallMs = (System.nanoTime() - start) / 1000000;
+            run.readPhases(manager.lines());
+            for (Launched worker : workerProcesses) {
+                ok &= worker.waitFor();
+                for (String line : worker.lines()) {
+                    Matcher m = WORKER_DONE.matcher(line);
+                    if (m.find()) {
+                        run.workerTasks.add(m.group(1));
+                    }
+                }
+            }
+            deleteAll(dir);
+            return ok ? run : null;
+        } catch (IOException e) {
+            System.err.println("error running the distributed render:\n\t" + e);
+            for (Launched l : launched) {
+                l.process.destroyForcibly();
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Get the options setting the grid and iteration limit.
+     */
+    private static List<String> gridOptions(int real, int imaginary) {
+        List<String> options = new ArrayList<>();
+        options.add("-Dmandelbrot.realPoints=" + real);
+        options.add("-Dmandelbrot.imaginaryPoints=" + imaginary);
+        options.add("-Dmandelbrot.iterations=" + ITERATIONS);
+        return options;
+    }
+
+    /**
+     * Build the command running a class of this classpath in a new JVM.
+     */
+    private static List<String> javaCommand(List<String> options, String mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(new File(entry).getAbsolutePath());
+        }
+        command.add(String.join(File.pathSeparator, classPath));
+        command.addAll(options);
+        command.add(mainClass);
+        for (String arg : args) {
+            command.add(arg);
+        }
+        return command;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static void deleteAll(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteAll(child);
+            }
+        }
+        file.delete();
+    }
+
+    private void writeCsv() {
+        try (PrintWriter writer = new PrintWriter(OUTPUT)) {
+            writer.println(HEADER);
+            for (String row : rows) {
+                writer.println(row);
+            }
+        } catch (FileNotFoundException e) {
+            System.err.println("error writing " + OUTPUT + ":\n\t" + e);
+        }
+    }
+
+    /**
+     * The measurements of one run.
+     */
+    private static class Run {
+        private final String engine;
+        private final Map<String, String> phases = new HashMap<>();
+        private final List<String> workerTasks = new ArrayList<>();
+        private long wallMs;
+
+        Run(String engine) {
+            this.engine = engine;
+        }
+
+        void readPhases(List<String> lines) {
+            for (String line : lines) {
+                if (line.startsWith("phases:")) {
+                    Matcher m = PHASE.matcher(line);
+                    while (m.find()) {
+                        phases.put(m.group(1), m.group(2));
+                    }
+                }
+            }
+        }
+
+        String phase(String name) {
+            return phases.getOrDefault(name, "");
+        }
+    }
+
+    /**
+     * A launched JVM, whose output is collected by a thread of its own.
+     */
+    private static class Launched {
+        private final Process process;
+        private final List<String> lines = new ArrayList<>();
+        private final Thread reader;
+
+        private Launched(Process process) {
+            this.process = process;
+            this.reader = new Thread(this::read);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        static Launched start(List<String> command, File dir) throws IOException {
+            ProcessBuilder builder = new ProcessBuilder(command);
+            builder.directory(dir);
+            builder.redirectErrorStream(true);
+            return new Launched(builder.start());
+        }
+
+        private void read() {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    synchronized (this) {
+                        lines.add(line);
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                System.err.println("error reading process output:\n\t" + e);
+            }
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+
+        /**
+         * Wait until the process prints a line containing the given text.
+         *
+         * @return {@code false} if it exits or times out first.
+         */
+        synchronized boolean awaitLine(String text) {
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+            int seen = 0;
+            while (System.currentTimeMillis() < deadline) {
+                for (; seen < lines.size(); seen++) {
+                    if (lines.get(seen).contains(text)) {
+                        return true;
+                    }
+                }
+                if (!reader.isAlive()) {
+                    return false;
+                }
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Wait for the process to exit and its output to be read.
+         *
+         * @return {@code true} if it exited with status 0 in time.
+         */
+        boolean waitFor() {
+            try {
+                if (!process.waitFor(TIMEOUT, TimeUnit.SECONDS)) {
+                    System.err.println("process timed out, killing it");
+                    process.destroyForcibly();
+                    return false;
+                }
+                reader.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return false;
+            }
+            if (process.exitValue() != 0) {
+                System.err.println("process exited with status " + process.exitValue() + ":\n\t"
+                        + String.join("\n\t", lines()));
+                return false;
+            }
+            return true;
+        }
+
+        synchronized List<String> lines() {
+            return new ArrayList<>(lines);
+        }
+    }
+}
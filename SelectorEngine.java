@@ -0,0 +1,443 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Serves every worker connection of a Manager from a small, fixed set of event
+ * loop threads using non-blocking channels, instead of one thread per worker.
+ *
+ * The engine speaks the binary protocol of TaskChannel, so workers connect to it
+ * unchanged. Results are passed to a WorkerTalker created for each connection by
+ * {@link Manager#newTalker}, so subclasses collect results exactly as they do
+ * with the thread per worker engine.
+ *
+ * Each loop wakes at least every {@link #TICK_MS} milliseconds so that idle
+ * connections can pick up lost or overdue tasks from the manager's TaskTracker.
+ */
+class SelectorEngine {
+
+    /* Initial size of each connection's input and output buffers */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /* Longest time a loop waits before checking its idle connections */
+    private static final long TICK_MS = 50;
+
+    private final Manager manager;
+    private final EventLoop[] loops;
+    private final Thread[] loopThreads;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean closing = false;
+
+    /**
+     * Construct an engine for the given manager.
+     *
+     * @param manager the manager whose task queue is served
+     * @param threads the number of event loop threads
+     */
+    SelectorEngine(Manager manager, int threads) throws IOException {
+        this.manager = manager;
+        this.loops = new EventLoop[threads];
+        this.loopThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            loops[i] = new EventLoop(Selector.open());
+        }
+    }
+
+    /**
+     * Bind the server channel and start the event loops. The first loop also
+     * accepts new connections.
+     */
+    void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(manager.port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+        System.out.println("waiting for workers to request tasks");
+
+        for (int i = 0; i < loops.length; i++) {
+            loopThreads[i] = new Thread(loops[i], "selector-" + i);
+            loopThreads[i].start();
+        }
+    }
+
+    /**
+     * Stop accepting connections. Each loop exits once its connections have been
+     * sent the shutdown frame.
+     */
+    void shutdown() {
+        closing = true;
+        try {
+            serverChannel.close();
+        } catch (IOException e) {
+            System.err.println("error shutting down server channel:\n\t" + e);
+        }
+        for (EventLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Wait for the event loops to finish.
+     */
+    void join() {
+        for (Thread t : loopThreads) {
+            manager.waitForThreadToComplete(t);
+        }
+    }
+
+    /**
+     * Accept a pending connection and hand it to an event loop.
+     */
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        /* the address is logged unresolved, as a reverse lookup would stall the loop */
+        int workerID = manager.numWorkers++;
+        System.out.printf("connection from %s, worker %d\n", channel.socket().getInetAddress().getHostAddress(),
+                workerID);
+        EventLoop loop = loops[workerID % loops.length];
+        loop.pending.add(new Connection(channel, workerID));
+        loop.selector.wakeup();
+    }
+
+    /**
+     * A thread multiplexing a share of the connections over one selector.
+     */
+    private class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        private final List<Connection> connections = new ArrayList<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        public void run() {
+            try {
+                while (!(closing && connections.isEmpty() && pending.isEmpty())) {
+                    selector.select(TICK_MS);
+                    register();
+                    tick();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.write();
+                            }
+                        } catch (IOException e) {
+                            System.err.println("error in client " + connection.workerID + ":\n\t" + e);
+                            connection.close();
+                        }
+                    }
+                }
+                selector.close();
+            } catch (IOException e) {
+                System.err.println("error in selector loop:\n\t" + e);
+            }
+        }
+
+        /**
+         * Let every connection check for tasks to run or for the end of the job.
+         */
+        private void tick() {
+            for (Connection connection : new ArrayList<>(connections)) {
+                try {
+                    connection.tick();
+                } catch (IOException e) {
+                    System.err.println("error in client " + connection.workerID + ":\n\t" + e);
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Register connections handed over by the accepting loop.
+         */
+        private void register() {
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                try {
+                    connection.open(this);
+                } catch (IOException e) {
+                    System.err.println("error in client " + connection.workerID + ":\n\t" + e);
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * The state of one worker connection.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final int workerID;
+        private final Map<Integer, Tasks> inFlight = new HashMap<>();
+        private final Map<Integer, Long> sentAt = new HashMap<>();
+        private final Metrics.Stats stats;
+        private final TaskChannel.FrameBuffer frame = new TaskChannel.FrameBuffer();
+        private ByteBuffer in = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer out = ByteBuffer.allocate(BUFFER_SIZE);
+        private EventLoop loop;
+        private SelectionKey key;
+        private Manager.WorkerTalker talker;
+        private Tasks.Codec codec;
+        private int connectionWindow = 0;
+        private boolean moreTasks = true;
+        private boolean shutdownSent = false;
+
+        /* Time the connection last ran out of tasks, or 0 while it has some */
+        private long idleSince = System.nanoTime();
+
+        Connection(SocketChannel channel, int workerID) {
+            this.channel = channel;
+            this.workerID = workerID;
+            this.stats = manager.metrics.stats("worker-" + workerID);
+        }
+
+        /**
+         * Register with the loop's selector and send the handshake. Tasks follow
+         * once the worker's credit arrives.
+         */
+        void open(EventLoop loop) throws IOException {
+            this.loop = loop;
+            loop.connections.add(this);
+            channel.configureBlocking(false);
+            key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+
+            talker = manager.newTalker(manager.taskQueue, workerID, channel.socket());
+            codec = manager.newCodec();
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream handshake = new DataOutputStream(bytes);
+            handshake.writeByte(TaskChannel.BINARY_PROTOCOL);
+            handshake.writeInt(workerID);
+            handshake.writeUTF(codec.getClass().getName());
+            append(bytes.toByteArray(), bytes.size());
+
+            codec.writeJob(frame.start(TaskChannel.JOB_FRAME));
+            appendFrame();
+
+            write();
+        }
+
+        /**
+         * Fill the window with tasks, trying the queue again whenever it may have
+         * refilled. Once the queue is empty an idle connection
+         * runs lost or overdue tasks, and is sent the shutdown frame when every
+         * task is done.
+         */
+        private void dispatch() throws IOException {
+            if (connectionWindow == 0 || shutdownSent) {
+                return;
+            }
+
+            /* a queue fed during the job, such as a relay's, may have refilled */
+            if (!moreTasks && !manager.taskQueue.isEmpty()) {
+                moreTasks = true;
+            }
+            while (moreTasks && inFlight.size() < connectionWindow) {
+                Tasks t = manager.tracker.take();
+                if (t == null) {
+                    moreTasks = !manager.taskQueue.isEmpty();
+                    break;
+                }
+                send(t);
+            }
+
+            if (inFlight.isEmpty()) {
+                Tasks t = manager.tracker.spare(inFlight.keySet());
+                if (t == null && !manager.taskQueue.isEmpty()) {
+                    t = manager.tracker.take();
+                }
+                if (t != null) {
+                    send(t);
+                } else if (manager.tracker.isDone()) {
+                    manager.closeWindow(connectionWindow);
+                    frame.start(TaskChannel.SHUTDOWN_FRAME);
+                    appendFrame();
+                    shutdownSent = true;
+                }
+            }
+        }
+
+        /**
+         * Queue a task frame for the worker.
+         */
+        private void send(Tasks t) throws IOException {
+            long now = System.nanoTime();
+            if (idleSince != 0) {
+                stats.idleNanos.add(now - idleSince);
+                idleSince = 0;
+            }
+            inFlight.put(t.getTaskID(), t);
+            sentAt.put(t.getTaskID(), now);
+
+            DataOutputStream payload = frame.start(TaskChannel.TASK_FRAME);
+            payload.writeInt(t.getTaskID());
+            codec.writeTask(payload, t);
+            appendFrame();
+        }
+
+        /**
+         * Check a connection with room in its window for tasks to run, and give up on one still
+         * waiting for results once every task is done, as those results can only
+         * be copies.
+         */
+        void tick() throws IOException {
+            if (!channel.isOpen()) {
+                return;
+            }
+            if (!inFlight.isEmpty() && closing && manager.tracker.isDone()) {
+                System.out.printf("client %d abandoned with copies of finished tasks\n", workerID);
+                close();
+                return;
+            }
+            if (!inFlight.isEmpty() && (inFlight.size() >= connectionWindow || manager.taskQueue.isEmpty())) {
+                return;
+            }
+            dispatch();
+            write();
+        }
+
+        /**
+         * Read whatever has arrived and handle each complete frame.
+         */
+        void read() throws IOException {
+            int n = channel.read(in);
+            if (n < 0) {
+                throw new IOException("connection closed by worker");
+            }
+            stats.bytesReceived.add(n);
+
+            in.flip();
+            while (in.remaining() >= 4) {
+                int length = in.getInt(in.position());
+                if (in.remaining() < 4 + length) {
+                    if (4 + length > in.capacity()) {
+                        ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(in);
+                        larger.flip();
+                        in = larger;
+                    }
+                    break;
+                }
+
+                in.getInt();
+                byte type = in.get();
+                DataInputStream payload = new DataInputStream(
+                        new ByteArrayInputStream(in.array(), in.arrayOffset() + in.position(), length - 1));
+                in.position(in.position() + length - 1);
+
+                if (type == TaskChannel.CREDIT_FRAME && connectionWindow == 0) {
+                    connectionWindow = manager.openWindow(payload.readInt());
+                } else if (type == TaskChannel.RESULT_FRAME) {
+                    int taskID = payload.readInt();
+                    long computeNanos = payload.readLong();
+                    Tasks.TaskResult taskResult = codec.readResult(payload);
+                    taskResult.setTaskID(taskID);
+                    taskResult.setComputeNanos(computeNanos);
+                    manager.collect(talker, taskResult, inFlight, sentAt, stats, workerID);
+                    if (inFlight.isEmpty() && idleSince == 0) {
+                        idleSince = System.nanoTime();
+                    }
+                    taskResult.release();
+                }
+            }
+            in.compact();
+
+            dispatch();
+            write();
+        }
+
+        /**
+         * Write as much pending output as the socket accepts, closing the
+         * connection once the shutdown frame has gone.
+         */
+        void write() throws IOException {
+            out.flip();
+            stats.bytesSent.add(channel.write(out));
+            out.compact();
+
+            if (out.position() > 0) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else if (shutdownSent) {
+                channel.shutdownOutput();
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Close the channel and forget the connection.
+         */
+        void close() {
+            if (idleSince != 0) {
+                stats.idleNanos.add(System.nanoTime() - idleSince);
+                idleSince = 0;
+            }
+            if (!shutdownSent) {
+                manager.closeWindow(connectionWindow);
+                manager.tracker.lost(inFlight.values());
+                inFlight.clear();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("error closing client " + workerID + ":\n\t" + e);
+            }
+            if (loop != null) {
+                loop.connections.remove(this);
+            }
+        }
+
+        private void appendFrame() {
+            append(frame.finish(), frame.size());
+        }
+
+        private void append(byte[] bytes, int length) {
+            if (out.remaining() < length) {
+                ByteBuffer larger = ByteBuffer.allocate(Math.max(out.position() + length, 2 * out.capacity()));
+                out.flip();
+                larger.put(out);
+                out = larger;
+            }
+            out.put(bytes, 0, length);
+        }
+    }
+}
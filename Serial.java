@@ -1,15 +1,31 @@
 import java.io.FileNotFoundException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
-
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the grid in a single process, as the reference for the distributed
+ * versions.
+ *
+ * With {@code mandelbrot.parallel} set, the grid is computed on {@code
+ * mandelbrot.localThreads} threads, 0 for all cores, by recursively splitting
+ * it into tiles in a ForkJoinPool, whose work stealing evens out the uneven cost
+ * of the regions. Every point is computed exactly as in the sequential loop, so
+ * the output is identical.
+ *
+ * The grid and iteration limit are set as for MandelbrotManager, with {@code
+ * mandelbrot.realPoints}, {@code mandelbrot.imaginaryPoints} and {@code
+ * mandelbrot.iterations}, though the grid defaults to 300 by 200 points.
+ */
 class Serial {
 
     /* Maximum number of iterations */
-    private static final int MAX_ITERATIONS = 200;
+    private static final int MAX_ITERATIONS = Integer.getInteger("mandelbrot.iterations", 200);
 
     /* Number of points on real and imaginary axes */
-    private static final int NUM_REAL_POINTS = 300;
-    private static final int NUM_IMAGINARY_POINTS = 200;
+    private static final int NUM_REAL_POINTS = Integer.getInteger("mandelbrot.realPoints", 300);
+    private static final int NUM_IMAGINARY_POINTS = Integer.getInteger("mandelbrot.imaginaryPoints", 200);
 
     /* Domain size */
     private static final double REAL_MIN_Z = -2.0f;
@@ -19,11 +35,19 @@ class Serial {
 
     private static final String SPACE = " ";
 
-    /* Real and imaginary components of z at iteration 0 */
-    private double z0Real, z0Imaginary;
+    /* Whether to skip interior points with the escape-time shortcuts */
+    private static final boolean SHORTCUTS = Boolean.getBoolean("mandelbrot.shortcuts");
+
+    /* Whether to compute tiles of the grid in parallel, and on how many threads */
+    private static final boolean PARALLEL = Boolean.getBoolean("mandelbrot.parallel");
+    private static final int THREADS = Integer.getInteger("mandelbrot.localThreads", 0);
+
+    /* Tiles of at most this many points are computed without splitting further */
+    private static final int TILE_POINTS = 1024;
 
-    /* Real and imaginary components of z */
-    private double zReal, zImaginary;
+    /* Columns past which points are mirrored from below, with the shortcuts */
+    private static final int HALF = IMAGINARY_MIN_Z == -IMAGINARY_MAX_Z ? NUM_IMAGINARY_POINTS / 2
+            : NUM_IMAGINARY_POINTS;
 
     private int[][] numIterations;
 
@@ -37,44 +61,153 @@ class Serial {
     }
 
     public void run() {
+        long start = System.nanoTime();
         startCalculations();
+        long computed = System.nanoTime();
         writeResults();
+        long written = System.nanoTime();
+        System.out.printf("phases: compute=%d write=%d ms\n", (computed - start) / 1000000,
+                (written - computed) / 1000000);
     }
 
     public void startCalculations() {
         System.out.println("Starting calculation\n");
+        long start = System.nanoTime();
+
+        if (PARALLEL) {
+            ForkJoinPool pool = THREADS > 0 ? new ForkJoinPool(THREADS) : new ForkJoinPool();
+            pool.invoke(new Tile(0, NUM_REAL_POINTS + 1, 0, NUM_IMAGINARY_POINTS + 1));
+            pool.shutdown();
+            System.out.printf("computed on %d threads\n", pool.getParallelism());
+        } else {
+            calculateTile(0, NUM_REAL_POINTS + 1, 0, NUM_IMAGINARY_POINTS + 1);
+        }
 
-        /* Loop over real and imaginary axes */
+        if (SHORTCUTS) {
+            mirror();
+        }
+        System.out.printf("calculation took %d ms\n", (System.nanoTime() - start) / 1000000);
+    }
+
+    /**
+     * Compute the counts of a rectangle of the grid. With the shortcuts, points
+     * mirrored from below are left for {@link #mirror()}.
+     */
+    private void calculateTile(int rowFirst, int rowCount, int colFirst, int colCount) {
+        for (int i = rowFirst; i < rowFirst + rowCount; i++) {
+            for (int j = colFirst; j < colFirst + colCount; j++) {
+                if (!SHORTCUTS) {
+                    numIterations[i][j] = iterate(i, j);
+                } else if (!isMirrored(j)) {
+                    numIterations[i][j] = iterateWithShortcuts(i, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the iterations of a point, as the last iteration before it escapes.
+     */
+    private static int iterate(int i, int j) {
+        // z0 = z_Re + z_Im*I;
+        // z = z0;
+        double z0Real = (((float) i) / ((float) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
+        double z0Imaginary = (((float) j) / ((float) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
+                + IMAGINARY_MIN_Z;
+
+        double zReal = z0Real;
+        double zImaginary = z0Imaginary;
+        int count = 0;
+
+        for (int k = 0; k < MAX_ITERATIONS; k++) {
+            double zSquaredReal = (Math.pow(zReal, 2)) - (Math.pow(zImaginary, 2)); // Re(z^2)
+            double zSquaredImaginary = (double) 2.0 * zReal * zImaginary; // Im (z^2)
+
+            double magnitudeZSquaredSquared = (Math.pow(zSquaredReal, 2)) + (Math.pow(zSquaredImaginary, 2)); // |
+                                                                                                              // z^2|^2
+            if (magnitudeZSquaredSquared > 4) {
+                break; // Equivalent to |z^2|>2
+            }
+
+            count = k;
+
+            zReal = zSquaredReal + z0Real; // update z to value at next iteration
+            zImaginary = zSquaredImaginary + z0Imaginary;
+        }
+        return count;
+    }
+
+    /**
+     * Count the iterations of a point with the escape-time shortcuts of
+     * MandelbrotTask, giving the same count as {@link #iterate}. That records the
+     * last iteration before the point escapes, one less than the escape time, or
+     * 0 for points escaping at once.
+     */
+    private static int iterateWithShortcuts(int i, int j) {
+        double z0Real = (((float) i) / ((float) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
+        int escapeTime = MandelbrotTask.escapeTimeWithShortcuts(z0Real, imaginaryPoint(j), MAX_ITERATIONS);
+        return Math.max(escapeTime - 1, 0);
+    }
+
+    /**
+     * Check whether the points of a column are exact conjugates of those of a
+     * column below the middle, and so are mirrored rather than computed with the
+     * shortcuts.
+     */
+    private static boolean isMirrored(int j) {
+        return j > HALF && imaginaryPoint(NUM_IMAGINARY_POINTS - j) == -imaginaryPoint(j);
+    }
+
+    /**
+     * Copy the counts of the mirrored columns from their conjugates.
+     */
+    private void mirror() {
         for (int i = 0; i < NUM_REAL_POINTS + 1; i++) {
-            for (int j = 0; j < NUM_IMAGINARY_POINTS + 1; j++) {
-                // z0 = z_Re + z_Im*I;
-                // z = z0;
-                z0Real = (((float) i) / ((float) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
-                z0Imaginary = (((float) j) / ((float) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
-                        + IMAGINARY_MIN_Z;
-
-                zReal = z0Real;
-                zImaginary = z0Imaginary;
-
-                for (int k = 0; k < MAX_ITERATIONS; k++) {
-                    double zSquaredReal = (Math.pow(zReal, 2)) - (Math.pow(zImaginary, 2)); // Re(z^2)
-                    double zSquaredImaginary = (double) 2.0 * zReal * zImaginary; // Im (z^2)
-
-                    double magnitudeZSquaredSquared = (Math.pow(zSquaredReal, 2)) + (Math.pow(zSquaredImaginary, 2)); // |
-                                                                                                                      // z^2|^2
-                    if (magnitudeZSquaredSquared > 4) {
-                        break; // Equivalent to |z^2|>2
-                    }
-
-                    numIterations[i][j] = k;
-
-                    zReal = zSquaredReal + z0Real; // update z to value at next iteration
-                    zImaginary = zSquaredImaginary + z0Imaginary;
+            for (int j = HALF + 1; j < NUM_IMAGINARY_POINTS + 1; j++) {
+                if (isMirrored(j)) {
+                    numIterations[i][j] = numIterations[i][NUM_IMAGINARY_POINTS - j];
                 }
             }
         }
     }
 
+    /**
+     * A rectangle of the grid, split in half along its longer side until it is
+     * small enough to compute directly.
+     */
+    private class Tile extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int rowFirst, rowCount, colFirst, colCount;
+
+        Tile(int rowFirst, int rowCount, int colFirst, int colCount) {
+            this.rowFirst = rowFirst;
+            this.rowCount = rowCount;
+            this.colFirst = colFirst;
+            this.colCount = colCount;
+        }
+
+        @Override
+        protected void compute() {
+            if (rowCount * colCount <= TILE_POINTS) {
+                calculateTile(rowFirst, rowCount, colFirst, colCount);
+            } else if (rowCount >= colCount) {
+                int half = rowCount / 2;
+                invokeAll(new Tile(rowFirst, half, colFirst, colCount),
+                        new Tile(rowFirst + half, rowCount - half, colFirst, colCount));
+            } else {
+                int half = colCount / 2;
+                invokeAll(new Tile(rowFirst, rowCount, colFirst, half),
+                        new Tile(rowFirst, rowCount, colFirst + half, colCount - half));
+            }
+        }
+    }
+
+    private static double imaginaryPoint(int j) {
+        return (((float) j) / ((float) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z) + IMAGINARY_MIN_Z;
+    }
+
     public void writeResults() {
         System.out.println("Writing Results");
 
@@ -83,9 +216,9 @@ class Serial {
 
             for (int i = 0; i < NUM_REAL_POINTS + 1; i++) {
                 for (int j = 0; j < NUM_IMAGINARY_POINTS + 1; j++) {
-                    zReal = (((double) i) / ((double) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
-                    zImaginary = (((double) j) / ((double) NUM_IMAGINARY_POINTS)) * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z)
-                            + IMAGINARY_MIN_Z;
+                    double zReal = (((double) i) / ((double) NUM_REAL_POINTS)) * (REAL_MAX_Z - REAL_MIN_Z) + REAL_MIN_Z;
+                    double zImaginary = (((double) j) / ((double) NUM_IMAGINARY_POINTS))
+                            * (IMAGINARY_MAX_Z - IMAGINARY_MIN_Z) + IMAGINARY_MIN_Z;
 
                     writer.println(zReal + SPACE + zImaginary + SPACE + numIterations[i][j]);
                 }
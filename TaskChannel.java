@@ -0,0 +1,517 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection between a manager and a worker over which tasks and results are
+ * exchanged.
+ *
+ * The first byte sent by the manager selects the protocol. The object protocol
+ * sends Java serialized objects, as the original implementation did. The binary
+ * protocol sends length-prefixed frames whose payloads are written by a
+ * Tasks.Codec:
+ *
+ * (1) The manager sends the worker ID and the class name of the codec. (2) A JOB
+ * frame carries the parameters shared by every task, once per connection. (3)
+ * TASK frames carry a task id followed by the codec's encoding, and RESULT
+ * frames a task id, the compute time in nanoseconds and the codec's encoding.
+ * (4) A SHUTDOWN frame ends the connection.
+ *
+ * In both protocols the worker answers the handshake with the number of tasks it
+ * would like to have in flight, a CREDIT frame in the binary protocol.
+ */
+public abstract class TaskChannel {
+
+    /* Protocol identifiers, sent as the first byte of a connection */
+    public static final int OBJECT_PROTOCOL = 0;
+    public static final int BINARY_PROTOCOL = 1;
+
+    /* Frame types of the binary protocol */
+    static final byte JOB_FRAME = 1;
+    static final byte TASK_FRAME = 2;
+    static final byte RESULT_FRAME = 3;
+    static final byte SHUTDOWN_FRAME = 4;
+    static final byte CREDIT_FRAME = 5;
+
+    /* Size of the stream buffers on each side of the socket */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    protected final Socket socket;
+    protected int workerID;
+    private CountingOutputStream countedOut;
+    private CountingInputStream countedIn;
+
+    protected TaskChannel(Socket socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Open the manager side of a connection.
+     *
+     * @param socket   the connected socket
+     * @param workerID the ID to send to the worker
+     * @param codec    the codec for the binary protocol, or null to send objects
+     */
+    public static TaskChannel openManagerSide(Socket socket, int workerID, Tasks.Codec codec) throws IOException {
+        CountingOutputStream countedOut = new CountingOutputStream(socket.getOutputStream());
+        CountingInputStream countedIn = new CountingInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(countedOut, BUFFER_SIZE);
+        InputStream in = new BufferedInputStream(countedIn, BUFFER_SIZE);
+
+        TaskChannel channel;
+        if (codec == null) {
+            out.write(OBJECT_PROTOCOL);
+            channel = new ObjectChannel(socket, in, out);
+        } else {
+            out.write(BINARY_PROTOCOL);
+            channel = new BinaryChannel(socket, in, out, codec);
+        }
+        channel.countedOut = countedOut;
+        channel.countedIn = countedIn;
+        channel.workerID = workerID;
+        channel.sendHandshake();
+        channel.flush();
+        return channel;
+    }
+
+    /**
+     * Open the worker side of a connection, receiving the worker ID and, for the
+     * binary protocol, the codec to decode tasks with.
+     *
+     * @param socket the socket connected to the manager
+     */
+    public static TaskChannel openWorkerSide(Socket socket) throws IOException, ClassNotFoundException {
+        CountingOutputStream countedOut = new CountingOutputStream(socket.getOutputStream());
+        CountingInputStream countedIn = new CountingInputStream(socket.getInputStream());
+        OutputStream out = new BufferedOutputStream(countedOut, BUFFER_SIZE);
+        InputStream in = new BufferedInputStream(countedIn, BUFFER_SIZE);
+
+        int protocol = in.read();
+        TaskChannel channel;
+        if (protocol == OBJECT_PROTOCOL) {
+            channel = new ObjectChannel(socket, in, out);
+        } else if (protocol == BINARY_PROTOCOL) {
+            channel = new BinaryChannel(socket, in, out, null);
+        } else {
+            throw new IOException("unknown protocol " + protocol);
+        }
+        channel.countedOut = countedOut;
+        channel.countedIn = countedIn;
+        channel.receiveHandshake();
+        return channel;
+    }
+
+    /**
+     * Get the ID the manager assigned to the worker.
+     */
+    public int getWorkerID() {
+        return workerID;
+    }
+
+    /**
+     * Count the bytes sent and received over the socket from now on, and those
+     * already counted, in the given counters.
+     */
+    public void countBytes(LongAdder sent, LongAdder received) {
+        countedOut.moveTo(sent);
+        countedIn.moveTo(received);
+    }
+
+    /**
+     * Get the codec tasks are decoded with, once the job has been received.
+     *
+     * @return the codec, or null if serialized objects are sent.
+     */
+    public Tasks.Codec getCodec() {
+        return null;
+    }
+
+    protected abstract void sendHandshake() throws IOException;
+
+    protected abstract void receiveHandshake() throws IOException, ClassNotFoundException;
+
+    /**
+     * Tell the manager how many tasks the worker would like to have in flight.
+     */
+    public abstract void writeCredit(int credit) throws IOException;
+
+    /**
+     * Receive the number of tasks the worker would like to have in flight.
+     */
+    public abstract int readCredit() throws IOException, ClassNotFoundException;
+
+    /**
+     * Send a task to the worker.
+     */
+    public abstract void writeTask(Tasks task) throws IOException;
+
+    /**
+     * Receive the next task from the manager.
+     *
+     * @return the task, or null once the manager has sent the shutdown task.
+     */
+    public abstract Tasks readTask() throws IOException, ClassNotFoundException;
+
+    /**
+     * Send the result of a task to the manager.
+     */
+    public abstract void writeResult(Tasks.TaskResult result) throws IOException;
+
+    /**
+     * Receive the next result from the worker.
+     */
+    public abstract Tasks.TaskResult readResult() throws IOException, ClassNotFoundException;
+
+    /**
+     * Tell the worker that there are no more tasks.
+     */
+    public abstract void writeShutdown() throws IOException;
+
+    /**
+     * Push buffered writes onto the socket.
+     */
+    public abstract void flush() throws IOException;
+
+    /**
+     * Shut the connection down.
+     */
+    public void close() throws IOException {
+        flush();
+        socket.shutdownOutput();
+        socket.close();
+    }
+
+    /**
+     * Channel sending Java serialized objects. The streams are reset after every
+     * write so sent objects do not stay reachable from the handle table.
+     */
+    static class ObjectChannel extends TaskChannel {
+        private final InputStream in;
+        private ObjectInputStream input;
+        private ObjectOutputStream output;
+
+        ObjectChannel(Socket socket, InputStream in, OutputStream out) throws IOException {
+            super(socket);
+            this.in = in;
+            output = new ObjectOutputStream(out);
+            output.flush();
+        }
+
+        @Override
+        protected void sendHandshake() throws IOException {
+            input = new ObjectInputStream(in);
+            output.writeObject(Integer.valueOf(workerID));
+        }
+
+        @Override
+        protected void receiveHandshake() throws IOException, ClassNotFoundException {
+            input = new ObjectInputStream(in);
+            workerID = (Integer) input.readObject();
+        }
+
+        @Override
+        public void writeCredit(int credit) throws IOException {
+            output.writeObject(Integer.valueOf(credit));
+        }
+
+        @Override
+        public int readCredit() throws IOException, ClassNotFoundException {
+            return (Integer) input.readObject();
+        }
+
+        @Override
+        public void writeTask(Tasks task) throws IOException {
+            output.writeObject(task);
+            output.reset();
+        }
+
+        @Override
+        public Tasks readTask() throws IOException, ClassNotFoundException {
+            Object fromManager = input.readObject();
+            return fromManager instanceof Tasks ? (Tasks) fromManager : null;
+        }
+
+        @Override
+        public void writeResult(Tasks.TaskResult result) throws IOException {
+            output.writeObject(result);
+            output.reset();
+        }
+
+        @Override
+        public Tasks.TaskResult readResult() throws IOException, ClassNotFoundException {
+            return (Tasks.TaskResult) input.readObject();
+        }
+
+        @Override
+        public void writeShutdown() throws IOException {
+            output.writeObject(new Manager.ShutdownTask());
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+    }
+
+    /**
+     * Channel sending length-prefixed binary frames encoded by a Tasks.Codec.
+     */
+    static class BinaryChannel extends TaskChannel {
+        private final DataInputStream input;
+        private final DataOutputStream output;
+        private final FrameBuffer frame = new FrameBuffer();
+        private Tasks.Codec codec;
+
+        BinaryChannel(Socket socket, InputStream in, OutputStream out, Tasks.Codec codec) {
+            super(socket);
+            this.input = new DataInputStream(in);
+            this.output = new DataOutputStream(out);
+            this.codec = codec;
+        }
+
+        @Override
+        protected void sendHandshake() throws IOException {
+            output.writeInt(workerID);
+            output.writeUTF(codec.getClass().getName());
+
+            codec.writeJob(frame.start(JOB_FRAME));
+            frame.writeTo(output);
+        }
+
+        @Override
+        protected void receiveHandshake() throws IOException, ClassNotFoundException {
+            workerID = input.readInt();
+            String codecName = input.readUTF();
+            try {
+                codec = (Tasks.Codec) Class.forName(codecName).getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new ClassNotFoundException("cannot create codec " + codecName, e);
+            }
+        }
+
+        @Override
+        public Tasks.Codec getCodec() {
+            return codec;
+        }
+
+        @Override
+        public void writeCredit(int credit) throws IOException {
+            frame.start(CREDIT_FRAME).writeInt(credit);
+            frame.writeTo(output);
+        }
+
+        @Override
+        public int readCredit() throws IOException {
+            while (true) {
+                int length = input.readInt();
+                byte type = input.readByte();
+
+                if (type == CREDIT_FRAME) {
+                    return input.readInt();
+                } else {
+                    skipFrame(length - 1);
+                }
+            }
+        }
+
+        @Override
+        public void writeTask(Tasks task) throws IOException {
+            DataOutputStream payload = frame.start(TASK_FRAME);
+            payload.writeInt(task.getTaskID());
+            codec.writeTask(payload, task);
+            frame.writeTo(output);
+        }
+
+        @Override
+        public Tasks readTask() throws IOException {
+            while (true) {
+                int length = input.readInt();
+                byte type = input.readByte();
+
+                if (type == JOB_FRAME) {
+                    codec.readJob(input);
+                } else if (type == TASK_FRAME) {
+                    int taskID = input.readInt();
+                    Tasks task = codec.readTask(input);
+                    task.setTaskID(taskID);
+                    return task;
+                } else if (type == SHUTDOWN_FRAME) {
+                    return null;
+                } else {
+                    skipFrame(length - 1);
+                }
+            }
+        }
+
+        @Override
+        public void writeResult(Tasks.TaskResult result) throws IOException {
+            DataOutputStream payload = frame.start(RESULT_FRAME);
+            payload.writeInt(result.getTaskID());
+            payload.writeLong(result.getComputeNanos());
+            codec.writeResult(payload, result);
+            frame.writeTo(output);
+        }
+
+        @Override
+        public Tasks.TaskResult readResult() throws IOException {
+            while (true) {
+                int length = input.readInt();
+                byte type = input.readByte();
+
+                if (type == RESULT_FRAME) {
+                    int taskID = input.readInt();
+                    long computeNanos = input.readLong();
+                    Tasks.TaskResult result = codec.readResult(input);
+                    result.setTaskID(taskID);
+                    result.setComputeNanos(computeNanos);
+                    return result;
+                } else {
+                    skipFrame(length - 1);
+                }
+            }
+        }
+
+        @Override
+        public void writeShutdown() throws IOException {
+            frame.start(SHUTDOWN_FRAME);
+            frame.writeTo(output);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            output.flush();
+        }
+
+        private void skipFrame(int length) throws IOException {
+            if (input.skipBytes(length) != length) {
+                throw new EOFException("truncated frame");
+            }
+        }
+    }
+
+    /**
+     * Stream counting the bytes written to the socket.
+     */
+    static class CountingOutputStream extends FilterOutputStream {
+        private LongAdder count = new LongAdder();
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        void moveTo(LongAdder counter) {
+            counter.add(count.sum());
+            count = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count.add(len);
+        }
+    }
+
+    /**
+     * Stream counting the bytes read from the socket.
+     */
+    static class CountingInputStream extends FilterInputStream {
+        private LongAdder count = new LongAdder();
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        void moveTo(LongAdder counter) {
+            counter.add(count.sum());
+            count = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b >= 0) {
+                count.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n > 0) {
+                count.add(n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            count.add(skipped);
+            return skipped;
+        }
+    }
+
+    /**
+     * Reusable buffer in which a frame is assembled so that its length can be
+     * written ahead of it.
+     */
+    static class FrameBuffer extends ByteArrayOutputStream {
+        private final DataOutputStream data = new DataOutputStream(this);
+
+        FrameBuffer() {
+            super(1 << 12);
+        }
+
+        /**
+         * Begin a new frame of the given type.
+         *
+         * @return the stream to write the frame's payload to.
+         */
+        DataOutputStream start(byte type) throws IOException {
+            reset();
+            data.writeInt(0);
+            data.writeByte(type);
+            return data;
+        }
+
+        /**
+         * Fill in the frame length and return the encoded frame's bytes. Only the
+         * first {@link #size()} bytes are valid, and only until the next frame is
+         * started.
+         */
+        byte[] finish() {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            return buf;
+        }
+
+        /**
+         * Write the completed frame to the given stream.
+         */
+        void writeTo(DataOutputStream out) throws IOException {
+            out.write(finish(), 0, count);
+        }
+    }
+}
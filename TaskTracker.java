@@ -0,0 +1,266 @@
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of every task handed out by a Manager until its first result
+ * arrives, so that no task is lost with a failed connection and the end of a job
+ * does not wait on the slowest worker.
+ *
+ * Tasks held by a connection that fails are handed out again before any new
+ * task. Once the queue has run dry, a worker with nothing in flight is given a
+ * copy of a task that is overdue, that is one outstanding for longer than
+ * {@link #SPECULATION_FACTOR} times the recent task duration. Copies share their
+ * task id, and only the first result to arrive for an id is collected.
+ */
+class TaskTracker {
+
+    /* A task is overdue after this many recent task durations */
+    private static final double SPECULATION_FACTOR = 3.0;
+
+    /* Never consider a task overdue before this many milliseconds */
+    private static final long MIN_DEADLINE_MS = 200;
+
+    /* Most copies of one task in flight at once */
+    private static final int MAX_COPIES = 2;
+
+    /* Weight of the newest duration in the recent task duration */
+    private static final double DURATION_WEIGHT = 0.2;
+
+    private final Manager manager;
+    private final boolean speculate;
+    private final Map<Integer, Outstanding> outstanding = new HashMap<>();
+    private final Deque<Tasks> lost = new ArrayDeque<>();
+
+    /* Number of threads between taking a task from the queue and recording it */
+    private int issuing = 0;
+
+    /* Recent task duration in milliseconds, 0 until a task has completed */
+    private double recentDuration = 0;
+
+    /**
+     * Construct a tracker for the tasks of the given manager.
+     *
+     * @param manager   the manager whose task queue is tracked
+     * @param speculate whether to copy overdue tasks to idle workers
+     */
+    TaskTracker(Manager manager, boolean speculate) {
+        this.manager = manager;
+        this.speculate = speculate;
+    }
+
+    /**
+     * Get the next task to send: a task lost with another connection, or else a
+     * new task from the queue.
+     *
+     * @return the task, or null if there are none left to hand out.
+     */
+    Tasks take() {
+        synchronized (this) {
+            Tasks t = resendLost();
+            if (t != null) {
+                return t;
+            }
+            issuing++;
+        }
+
+        Tasks t = manager.taskQueue.get();
+
+        synchronized (this) {
+            issuing--;
+            if (t != null) {
+                manager.assignTaskID(t);
+                outstanding.put(t.getTaskID(), new Outstanding(t));
+            }
+            notifyAll();
+            return t;
+        }
+    }
+
+    /**
+     * Get a task for an idle connection to run, without waiting: a lost task, or
+     * a copy of the most overdue task.
+     *
+     * @param held the ids of the tasks the connection already has in flight
+     * @return the task, or null if there is nothing to run at the moment.
+     */
+    synchronized Tasks spare(Set<Integer> held) {
+        Tasks t = resendLost();
+        if (t != null) {
+            return t;
+        }
+        if (!speculate || issuing > 0 || !manager.taskQueue.isEmpty()) {
+            return null;
+        }
+
+        long deadline = System.currentTimeMillis()
+                - Math.max(MIN_DEADLINE_MS, (long) (SPECULATION_FACTOR * recentDuration));
+        Outstanding overdue = null;
+        for (Outstanding o : outstanding.values()) {
+            if (o.sentAt < deadline && o.copies < MAX_COPIES && !held.contains(o.task.getTaskID())
+                    && (overdue == null || o.sentAt < overdue.sentAt)) {
+                overdue = o;
+            }
+        }
+        if (overdue == null) {
+            return null;
+        }
+
+        overdue.copies++;
+        System.out.printf("speculatively resending task %d\n", overdue.task.getTaskID());
+        return overdue.task;
+    }
+
+    /**
+     * Take a lost task to hand out again, timed from now as its earlier handout
+     * says nothing about when this one will finish.
+     *
+     * @return the task, or null if none is lost.
+     */
+    private Tasks resendLost() {
+        Tasks t = lost.poll();
+        if (t != null) {
+            Outstanding o = outstanding.get(t.getTaskID());
+            o.copies++;
+            o.sentAt = System.currentTimeMillis();
+        }
+        return t;
+    }
+
+    /**
+     * Wait until there is a task for an idle connection to run, or until every
+     * task has completed. Tasks reaching a queue fed while the job runs are
+     * handed out as they arrive.
+     *
+     * @return the task, or null once the job is done.
+     */
+    synchronized Tasks awaitSpare() {
+        while (true) {
+            Tasks t = spare(Collections.<Integer>emptySet());
+            if (t == null && !manager.taskQueue.isEmpty()) {
+                t = take();
+            }
+            if (t != null) {
+                return t;
+            }
+            if (isDone()) {
+                return null;
+            }
+            try {
+                wait(MIN_DEADLINE_MS / 4);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Record the arrival of a result.
+     *
+     * @param taskID the id of the task the result belongs to
+     * @return {@code true} if this is the first result for the task and should be
+     *         collected, {@code false} if it duplicates one already collected.
+     */
+    synchronized boolean complete(int taskID) {
+        Outstanding o = outstanding.remove(taskID);
+        if (o == null) {
+            return false;
+        }
+
+        long duration = System.currentTimeMillis() - o.sentAt;
+        recentDuration = recentDuration == 0 ? duration
+                : (1 - DURATION_WEIGHT) * recentDuration + DURATION_WEIGHT * duration;
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Record the arrival of a partial result covering several tasks, which are
+     * completed together.
+     *
+     * @param taskIDs the ids of the tasks the partial covers
+     * @return {@code true} if none of the tasks had a result and all are now
+     *         completed, {@code false} if any had, leaving all of them as they
+     *         were.
+     */
+    synchronized boolean completeAll(int[] taskIDs) {
+        for (int taskID : taskIDs) {
+            if (!outstanding.containsKey(taskID)) {
+                return false;
+            }
+        }
+        for (int taskID : taskIDs) {
+            complete(taskID);
+        }
+        return true;
+    }
+
+    /**
+     * Record the failure of a connection, handing out again any of its tasks that
+     * have no other copy in flight.
+     *
+     * @param tasks the tasks the connection had in flight
+     */
+    synchronized void lost(Collection<Tasks> tasks) {
+        for (Tasks t : tasks) {
+            Outstanding o = outstanding.get(t.getTaskID());
+            if (o != null && --o.copies == 0) {
+                System.out.printf("task %d lost, resending\n", t.getTaskID());
+                lost.add(t);
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wake the connections waiting for a spare task, once a task has reached a
+     * queue fed while the job runs.
+     */
+    synchronized void queued() {
+        notifyAll();
+    }
+
+    /**
+     * Get the number of tasks handed out and waiting for a result.
+     */
+    synchronized int outstanding() {
+        return outstanding.size();
+    }
+
+    /**
+     * Check whether every task has been handed out and has a result.
+     */
+    synchronized boolean isDone() {
+        return issuing == 0 && outstanding.isEmpty() && manager.taskQueue.isEmpty();
+    }
+
+    /**
+     * Wait until every task has been handed out and has a result.
+     */
+    synchronized void awaitDone() {
+        while (!isDone()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A task which has been handed out and has no result yet.
+     */
+    private static class Outstanding {
+        private final Tasks task;
+        private long sentAt = System.currentTimeMillis();
+        private int copies = 1;
+
+        Outstanding(Tasks task) {
+            this.task = task;
+        }
+    }
+}
@@ -1,9 +1,26 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
 
 /**
  * Generic Tasks class to be sent from master to worker.
+ *
+ * A task may carry a Reduction, in which case the worker does not send its
+ * result back whole: it maps the result to a Partial and combines the partials
+ * of many tasks into one before sending it. The manager combines the partials it
+ * collects in turn, so only derived data, such as a histogram, ever travels.
  */
-public abstract class Tasks {
+public abstract class Tasks implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Identifier used to match a result to the task that produced it */
+    private int taskID;
+
+    /* Reduction the result is folded into on the worker, or null to send it whole */
+    private Reduction reduction;
 
     /**
      * Provides information about the task as a string
@@ -12,10 +29,210 @@ public abstract class Tasks {
 
     public abstract TaskResult execute();
 
+    /**
+     * Get the identifier assigned to this task by the manager.
+     */
+    public int getTaskID() {
+        return taskID;
+    }
+
+    /**
+     * Set the identifier used to match the result of this task.
+     */
+    public void setTaskID(int taskID) {
+        this.taskID = taskID;
+    }
+
+    /**
+     * Get the reduction the result of this task is folded into on the worker.
+     *
+     * @return the reduction, or null if the result is sent back whole.
+     */
+    public Reduction getReduction() {
+        return reduction;
+    }
+
+    /**
+     * Set the reduction the result of this task is folded into on the worker.
+     */
+    public void setReduction(Reduction reduction) {
+        this.reduction = reduction;
+    }
+
     /**
      * Class for task results. Serializable so they can be sent over sockets.
      */
     public static abstract class TaskResult implements Serializable {
         private static final long serialVersionUID = 1L;
+
+        /* Identifier of the task which produced this result */
+        private int taskID;
+
+        /* Time the worker spent executing the task, in nanoseconds */
+        private long computeNanos;
+
+        /**
+         * Get the identifier of the task which produced this result.
+         */
+        public int getTaskID() {
+            return taskID;
+        }
+
+        /**
+         * Set the identifier of the task which produced this result.
+         */
+        public void setTaskID(int taskID) {
+            this.taskID = taskID;
+        }
+
+        /**
+         * Get the time the worker spent executing the task, in nanoseconds.
+         */
+        public long getComputeNanos() {
+            return computeNanos;
+        }
+
+        /**
+         * Set the time the worker spent executing the task, in nanoseconds.
+         */
+        public void setComputeNanos(long computeNanos) {
+            this.computeNanos = computeNanos;
+        }
+
+        /**
+         * Hand any reusable buffers held by this result back for reuse. Called
+         * once the result has been sent or consumed; the result must not be used
+         * afterwards.
+         */
+        public void release() {
+        }
+    }
+
+    /**
+     * Maps the result of a task to a Partial. It is shared by every task of a job.
+     */
+    public interface Reduction extends Serializable {
+
+        /**
+         * Map the result of a task to a partial covering no task yet. The result's
+         * buffers are released afterwards, so anything kept must be copied.
+         */
+        Partial map(TaskResult result);
+
+        /**
+         * Get the most tasks a worker combines into one partial before sending
+         * it.
+         */
+        int batch();
+    }
+
+    /**
+     * Result summarising the results of several tasks, whose ids it carries, and
+     * combined with others of its kind. The tasks of a partial are only ever
+     * completed together.
+     */
+    public static abstract class Partial extends TaskResult {
+        private static final long serialVersionUID = 1L;
+
+        /* Identifiers of the tasks whose results are summarised */
+        private int[] taskIDs = new int[0];
+
+        /**
+         * Get the identifiers of the tasks whose results are summarised.
+         */
+        public int[] getTaskIDs() {
+            return taskIDs;
+        }
+
+        /**
+         * Record that the result of the given task is summarised, and the time the
+         * worker spent executing it.
+         */
+        public void cover(int taskID, long computeNanos) {
+            if (taskIDs.length == 0) {
+                setTaskID(taskID);
+            }
+            taskIDs = Arrays.copyOf(taskIDs, taskIDs.length + 1);
+            taskIDs[taskIDs.length - 1] = taskID;
+            setComputeNanos(getComputeNanos() + computeNanos);
+        }
+
+        /**
+         * Combine another partial into this one, which then covers its tasks too.
+         */
+        public void combine(Partial other) {
+            merge(other);
+            if (taskIDs.length == 0) {
+                setTaskID(other.getTaskID());
+            }
+            int[] ids = Arrays.copyOf(taskIDs, taskIDs.length + other.taskIDs.length);
+            System.arraycopy(other.taskIDs, 0, ids, taskIDs.length, other.taskIDs.length);
+            taskIDs = ids;
+            setComputeNanos(getComputeNanos() + other.getComputeNanos());
+        }
+
+        /**
+         * Merge the data summarised by another partial of the same kind into this
+         * one.
+         */
+        protected abstract void merge(Partial other);
+
+        /**
+         * Write the identifiers of the tasks, for a codec.
+         */
+        protected void writeTaskIDs(DataOutput out) throws IOException {
+            out.writeInt(taskIDs.length);
+            for (int id : taskIDs) {
+                out.writeInt(id);
+            }
+        }
+
+        /**
+         * Read identifiers written by {@link #writeTaskIDs}.
+         */
+        protected void readTaskIDs(DataInput in) throws IOException {
+            taskIDs = new int[in.readInt()];
+            for (int i = 0; i < taskIDs.length; i++) {
+                taskIDs[i] = in.readInt();
+            }
+        }
+    }
+
+    /**
+     * Class for encoding tasks and results in the binary protocol. The manager
+     * sends the codec's class name, so a subclass needs a public no-argument
+     * constructor, after which {@link #readJob} supplies the job parameters.
+     */
+    public static abstract class Codec {
+
+        /**
+         * Write the parameters shared by every task of the job.
+         */
+        public abstract void writeJob(DataOutput out) throws IOException;
+
+        /**
+         * Read the parameters written by {@link #writeJob}.
+         */
+        public abstract void readJob(DataInput in) throws IOException;
+
+        /**
+         * Write the fields which distinguish a task from the others in the job.
+         */
+        public abstract void writeTask(DataOutput out, Tasks task) throws IOException;
+
+        /**
+         * Read a task written by {@link #writeTask}.
+         */
+        public abstract Tasks readTask(DataInput in) throws IOException;
+
+        /**
+         * Write the result of a task.
+         */
+        public abstract void writeResult(DataOutput out, TaskResult result) throws IOException;
+
+        /**
+         * Read a result written by {@link #writeResult}.
+         */
+        public abstract TaskResult readResult(DataInput in) throws IOException;
     }
 }
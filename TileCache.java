@@ -0,0 +1,210 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Cache of computed tiles of counts, addressed by a key describing everything
+ * the counts depend on. Tiles are held in a least recently used order in memory
+ * and on disk, each tier bounded in size. A tile missing from memory is looked
+ * for on disk and promoted back into memory.
+ *
+ * Each tile is stored on disk in a file named after the SHA-256 hash of its key,
+ * holding the key itself, so that a collision is never mistaken for a hit, and
+ * the gzipped counts. Disk writes are made by a background thread; {@link
+ * #close()} waits for them.
+ */
+public class TileCache {
+
+    /* Identifies a cache file */
+    private static final int MAGIC = 0x54434348;
+
+    private final File directory;
+    private final long memoryLimit;
+    private final long diskLimit;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "tile-cache");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /* Tiles in memory, least recently used first, and their total size in bytes */
+    private final LinkedHashMap<String, int[]> memory = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes = 0;
+
+    /* Sizes of the files on disk by name, least recently used first, and their total */
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    private long diskBytes = 0;
+
+    /**
+     * Open a cache, indexing any tiles already stored in the directory.
+     *
+     * @param directory   the directory tiles are stored in, created if needed
+     * @param memoryLimit the most bytes of tiles to hold in memory
+     * @param diskLimit   the most bytes of tiles to store on disk
+     */
+    public TileCache(File directory, long memoryLimit, long diskLimit) throws IOException {
+        this.directory = directory;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("cannot create cache directory " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".tile"));
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            disk.put(file.getName(), file.length());
+            diskBytes += file.length();
+        }
+    }
+
+    /**
+     * Get a tile.
+     *
+     * @param key    the key the tile was stored under
+     * @param length the number of counts the tile must hold
+     * @return the counts of the tile, or null if it is not cached.
+     */
+    public synchronized int[] get(String key, int length) {
+        int[] counts = memory.get(key);
+        if (counts != null) {
+            return counts.length == length ? counts : null;
+        }
+
+        String name = fileName(key);
+        if (disk.get(name) == null) {
+            return null;
+        }
+        File file = new File(directory, name);
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(key) || in.readInt() != length) {
+                return null;
+            }
+            counts = new int[length];
+            for (int i = 0; i < length; i++) {
+                counts[i] = in.readInt();
+            }
+        } catch (IOException e) {
+            System.err.println("error reading cached tile " + name + ":\n\t" + e);
+            return null;
+        }
+
+        file.setLastModified(System.currentTimeMillis());
+        putInMemory(key, counts);
+        return counts;
+    }
+
+    /**
+     * Store a tile in memory, and on disk in the background. The counts must not
+     * be changed afterwards.
+     */
+    public synchronized void put(String key, int[] counts) {
+        putInMemory(key, counts);
+        writer.execute(() -> store(key, counts));
+    }
+
+    /**
+     * Wait for the tiles being stored to reach the disk.
+     */
+    public void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void putInMemory(String key, int[] counts) {
+        int[] previous = memory.put(key, counts);
+        if (previous != null) {
+            memoryBytes -= 4L * previous.length;
+        }
+        memoryBytes += 4L * counts.length;
+
+        Iterator<int[]> eldest = memory.values().iterator();
+        while (memoryBytes > memoryLimit && eldest.hasNext()) {
+            memoryBytes -= 4L * eldest.next().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * Write a tile to its file, evicting the least recently used files to stay
+     * within the limit.
+     */
+    private void store(String key, int[] counts) {
+        String name = fileName(key);
+        File file = new File(directory, name);
+        File temporary = new File(directory, name + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(temporary))))) {
+            out.writeInt(MAGIC);
+            out.writeUTF(key);
+            out.writeInt(counts.length);
+            for (int count : counts) {
+                out.writeInt(count);
+            }
+        } catch (IOException e) {
+            System.err.println("error storing cached tile " + name + ":\n\t" + e);
+            temporary.delete();
+            return;
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            return;
+        }
+
+        synchronized (this) {
+            Long previous = disk.put(name, file.length());
+            diskBytes += file.length() - (previous == null ? 0 : previous);
+
+            Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+            while (diskBytes > diskLimit && eldest.hasNext()) {
+                Map.Entry<String, Long> entry = eldest.next();
+                if (entry.getKey().equals(name)) {
+                    continue;
+                }
+                new File(directory, entry.getKey()).delete();
+                diskBytes -= entry.getValue();
+                eldest.remove();
+            }
+        }
+    }
+
+    /**
+     * Get the name of the file a tile is stored in.
+     */
+    private static String fileName(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(String.format("%02x", b));
+            }
+            return name.append(".tile").toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
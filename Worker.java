@@ -1,16 +1,47 @@
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Generic Worker for worker/master versions using sockets.
+ *
+ * A worker may run tasks on several threads at once, so that one process per
+ * node can use every core. It asks the manager for enough tasks to keep a few
+ * waiting for each thread, and sends each result back as soon as it is ready.
+ *
+ * The results of tasks carrying a reduction are combined into one partial,
+ * sent once it covers a batch of tasks, or sooner if no other task is running or
+ * waiting to run, as the manager may be waiting for it to send more.
+ *
+ * Tasks are not logged one by one; their count, compute and send times and the
+ * bytes exchanged are recorded in Metrics instead.
  */
 public class Worker {
     // variables/constants
     private String host;
     private int port;
-    private static final String usageMessage = "parameters:  host portNum";
+    private int threads;
+    private static final String usageMessage = "parameters:  host portNum [threads, 0 for all cores]";
+
+    /* Number of tasks to keep in flight for each thread */
+    private static final int PREFETCH_PER_THREAD = 2;
+
+    /* First failure seen while sending results */
+    private IOException writeException;
+
+    /* Partial combining the results of finished tasks not yet sent, or null */
+    private Tasks.Partial held;
+
+    /* Number of tasks handed to the pool and not yet finished */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /* Counters and histograms of the tasks run, created once the ID is known */
+    private Metrics metrics;
+    private Metrics.Stats stats;
 
     /**
      * Construct a new worker instance.
@@ -19,8 +50,20 @@ public class Worker {
      * @param port the port number of the master
      */
     public Worker(String host, int port) {
+        this(host, port, 1);
+    }
+
+    /**
+     * Construct a new worker instance which runs tasks on several threads.
+     * 
+     * @param host    the address of the master
+     * @param port    the port number of the master
+     * @param threads the number of tasks to run at once
+     */
+    public Worker(String host, int port, int threads) {
         this.host = host;
         this.port = port;
+        this.threads = threads;
     }
 
     /**
@@ -30,32 +73,131 @@ public class Worker {
 
         String host = null;
         int port = 0;
+        int threads = 1;
 
         host = args[0];
         try {
             port = Integer.parseInt(args[1]);
+            if (args.length > 2) {
+                threads = Integer.parseInt(args[2]);
+            }
         } catch (NumberFormatException e) {
             System.err.println(usageMessage);
             System.exit(1);
         }
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
 
-        new Worker(host, port).process();
+        new Worker(host, port, threads).process();
     }
 
     /**
      * Execute the tasks given by the manager, writing the results as
      * Tasks.TaskResult
      */
-    protected void runTasks(ObjectInputStream input, ObjectOutputStream output, int myID)
-            throws IOException, ClassNotFoundException {
+    protected void runTasks(TaskChannel channel, int myID) throws IOException, ClassNotFoundException {
+        channel.countBytes(stats.bytesSent, stats.bytesReceived);
+
+        /* ask for enough tasks that every thread has the next one waiting */
+        channel.writeCredit(PREFETCH_PER_THREAD * threads);
+        channel.flush();
+
+        /* read ahead so the next task is already local when one finishes */
+        TaskReader reader = new TaskReader(channel);
+        Thread readerThread = new Thread(reader);
+        readerThread.start();
 
         /* run while there are tasks to process */
+        ForkJoinPool pool = new ForkJoinPool(threads);
         Object fromManager = null;
-        while ((fromManager = input.readObject()) instanceof Tasks) {
-            Tasks task = (Tasks) fromManager;
-            Tasks.TaskResult taskResult = task.execute();
-            System.out.printf("worker %d received %s\n", myID, task.toString());
-            output.writeObject(taskResult);
+        while ((fromManager = reader.take()) instanceof Arrival) {
+            Arrival arrival = (Arrival) fromManager;
+            running.incrementAndGet();
+            pool.execute(() -> runTask(arrival, channel, reader));
+        }
+
+        pool.shutdown();
+        try {
+            pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            readerThread.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        reader.rethrow();
+        if (writeException != null) {
+            throw writeException;
+        }
+    }
+
+    /**
+     * Execute one task and send its result to the manager, or combine it into the
+     * partial held for the manager if the task carries a reduction.
+     */
+    private void runTask(Arrival arrival, TaskChannel channel, TaskReader reader) {
+        long start = System.nanoTime();
+        Tasks.TaskResult taskResult = arrival.task.execute();
+        long computed = System.nanoTime();
+        taskResult.setTaskID(arrival.task.getTaskID());
+        taskResult.setComputeNanos(computed - start);
+
+        Tasks.Reduction reduction = arrival.task.getReduction();
+        if (reduction != null) {
+            Tasks.Partial partial = reduction.map(taskResult);
+            partial.cover(arrival.task.getTaskID(), computed - start);
+            taskResult.release();
+            taskResult = hold(partial, reduction.batch(), reader);
+        } else {
+            running.decrementAndGet();
+        }
+
+        if (taskResult != null) {
+            send(taskResult, channel);
+            taskResult.release();
+        }
+
+        long sent = System.nanoTime();
+        stats.tasks.increment();
+        stats.compute.record(computed - start);
+        stats.transfer.record(sent - computed);
+        stats.latency.record(sent - arrival.nanos);
+    }
+
+    /**
+     * Combine a partial into the one held, taking the held partial to send once it
+     * covers a batch of tasks or nothing else is left to combine into it.
+     *
+     * @return the partial to send, or null to keep holding it.
+     */
+    private synchronized Tasks.Partial hold(Tasks.Partial partial, int batch, TaskReader reader) {
+        if (held == null) {
+            held = partial;
+        } else {
+            held.combine(partial);
+        }
+
+        boolean idle = running.decrementAndGet() == 0 && reader.isIdle();
+        if (!idle && held.getTaskIDs().length < batch) {
+            return null;
+        }
+        Tasks.Partial ready = held;
+        held = null;
+        return ready;
+    }
+
+    /**
+     * Send a result to the manager, unless sending has already failed.
+     */
+    private void send(Tasks.TaskResult taskResult, TaskChannel channel) {
+        synchronized (channel) {
+            if (writeException == null) {
+                try {
+                    channel.writeResult(taskResult);
+                    channel.flush();
+                } catch (IOException e) {
+                    writeException = e;
+                }
+            }
         }
     }
 
@@ -65,32 +207,104 @@ public class Worker {
     public void process() {
 
         Socket socket = null;
-        ObjectInputStream input = null;
-        ObjectOutputStream output = null;
 
         try {
-            /* connect to master process */
+            /* connect to master process, receiving worker ID */
             socket = new Socket(host, port);
-            input = new ObjectInputStream(socket.getInputStream());
-            output = new ObjectOutputStream(socket.getOutputStream());
+            TaskChannel channel = TaskChannel.openWorkerSide(socket);
+            int myID = channel.getWorkerID();
 
-            /* receive worker ID */
-            int myID = (Integer) input.readObject();
+            System.out.printf("worker %d starting with %d threads\n", myID, threads);
+            metrics = new Metrics("worker-" + myID);
+            stats = metrics.stats("worker");
+            metrics.start();
 
-            System.out.printf("worker %d starting\n", myID);
-
-            runTasks(input, output, myID);
+            runTasks(channel, myID);
 
             /* shut things down */
-            socket.shutdownOutput();
-            output.close();
-            input.close();
-            socket.close();
-            System.out.printf("worker %d done\n", myID);
+            channel.close();
+            metrics.stop();
+            System.out.printf("worker %d done after %d tasks\n", myID, stats.getTasks());
         } catch (ClassNotFoundException e) {
             System.err.println("worker error:\n\t" + e);
         } catch (IOException e) {
             System.err.println("worker error:\n\t" + e);
         }
     }
+
+    /**
+     * A task and the time it was read from the connection.
+     */
+    private static class Arrival {
+        private final Tasks task;
+        private final long nanos;
+
+        Arrival(Tasks task, long nanos) {
+            this.task = task;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Reads tasks from the manager into a local buffer until the shutdown task
+     * arrives or the stream fails.
+     */
+    private static class TaskReader implements Runnable {
+        private final TaskChannel channel;
+        private final BlockingQueue<Object> buffer = new LinkedBlockingQueue<>();
+        private IOException ioException;
+        private ClassNotFoundException classNotFoundException;
+
+        TaskReader(TaskChannel channel) {
+            this.channel = channel;
+        }
+
+        public void run() {
+            try {
+                Tasks task;
+                while ((task = channel.readTask()) != null) {
+                    buffer.add(new Arrival(task, System.nanoTime()));
+                }
+                buffer.add(new Manager.ShutdownTask());
+            } catch (IOException e) {
+                ioException = e;
+                buffer.add(new Manager.ShutdownTask());
+            } catch (ClassNotFoundException e) {
+                classNotFoundException = e;
+                buffer.add(new Manager.ShutdownTask());
+            }
+        }
+
+        /**
+         * Check whether no task is waiting to be taken.
+         */
+        boolean isIdle() {
+            return buffer.isEmpty();
+        }
+
+        /**
+         * Wait for the next buffered object.
+         */
+        Object take() {
+            while (true) {
+                try {
+                    return buffer.take();
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        /**
+         * Rethrow any failure seen while reading, once the reader has finished.
+         */
+        void rethrow() throws IOException, ClassNotFoundException {
+            if (ioException != null) {
+                throw ioException;
+            }
+            if (classNotFoundException != null) {
+                throw classNotFoundException;
+            }
+        }
+    }
 }
@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to send a task and its result there and back, through the binary codec
+ * with each encoding of the counts, or as serialized objects.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CodecBenchmark {
+
+    @Param({ "raw", "packed", "deflated", "object" })
+    public String encoding;
+
+    @Param({ "300x200", "3000x2000" })
+    public String resolution;
+
+    @Param({ "1", "16" })
+    public int rowCount;
+
+    private Callable<Object> operation;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        operation = Operations.get("codec." + encoding, resolution, 200, rowCount);
+    }
+
+    @Benchmark
+    public Object roundTrip() throws Exception {
+        return operation.call();
+    }
+}
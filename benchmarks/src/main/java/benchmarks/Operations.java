@@ -0,0 +1,41 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.Callable;
+
+/**
+ * Access to the operations prepared by Benchmark, which is in the default
+ * package and so can only be reached reflectively from here. The lookup is made
+ * once per trial; the operation itself is called directly.
+ */
+final class Operations {
+
+    private Operations() {
+    }
+
+    /**
+     * Prepare an operation of Benchmark.
+     *
+     * @param name          the name of the operation, e.g. "kernel.rows"
+     * @param resolution    the size of the grid, e.g. "300x200"
+     * @param maxIterations the maximum number of iterations at each point
+     * @param rowCount      the number of rows of a row task
+     */
+    @SuppressWarnings("unchecked")
+    static Callable<Object> get(String name, String resolution, int maxIterations, int rowCount)
+            throws ReflectiveOperationException {
+        String[] axes = resolution.split("x");
+        Method operation = Class.forName("Benchmark").getMethod("operation", String.class, int.class, int.class,
+                int.class, int.class);
+        try {
+            return (Callable<Object>) operation.invoke(null, name, Integer.parseInt(axes[0]),
+                    Integer.parseInt(axes[1]), maxIterations, rowCount);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to build a task queue over every row of the grid and take every task
+ * from it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueueBenchmark {
+
+    @Param({ "list", "guided", "cost" })
+    public String queue;
+
+    @Param({ "300x200", "3000x2000" })
+    public String resolution;
+
+    private Callable<Object> operation;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        operation = Operations.get("queue." + queue, resolution, 200, 1);
+    }
+
+    @Benchmark
+    public Object drain() throws Exception {
+        return operation.call();
+    }
+}
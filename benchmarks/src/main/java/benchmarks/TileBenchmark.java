@@ -0,0 +1,46 @@
+package benchmarks;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to compute a 64 by 64 tile in the middle of the grid.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TileBenchmark {
+
+    @Param({ "300x200", "3000x2000" })
+    public String resolution;
+
+    @Param({ "200", "1000" })
+    public int maxIterations;
+
+    private Callable<Object> operation;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        operation = Operations.get("kernel.tile", resolution, maxIterations, 1);
+    }
+
+    @Benchmark
+    public Object execute() throws Exception {
+        return operation.call();
+    }
+}